@@ -0,0 +1,152 @@
+package com.ayoubanbara.benchmarks;
+
+import com.ayoubanbara.ComponentResources;
+import com.ayoubanbara.CustomUserStorageProvider;
+import com.ayoubanbara.CustomUserStorageProviderFactory;
+import com.ayoubanbara.beans.ConfigurablePasswordEncoder;
+import com.ayoubanbara.dao.UserDAO;
+import com.ayoubanbara.datasource.EntityManagerFactoryRegistry;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import com.zaxxer.hikari.HikariDataSource;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_ALGORITHM_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_COST_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.TRACE_THRESHOLD_MILLIS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.VERIFY_THREADS_KEY;
+
+/**
+ * In-memory H2 database, in MySQL mode, holding {@code rows} seeded users, with the provider
+ * component and the stubbed Keycloak session the benchmarks run against.
+ * <p>
+ * Users are {@code user<n>@example.com}, {@code n} being their id, all with {@link #PASSWORD}.
+ */
+final class BenchmarkDatabase implements AutoCloseable {
+
+    static final String PASSWORD = "benchmark-password";
+
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    private final int rows;
+    private final HikariDataSource dataSource;
+    private final EntityManagerFactory entityManagerFactory;
+    private final ComponentModel model;
+    private final ComponentResources resources;
+    private final RealmModel realm;
+    private final KeycloakSession session;
+
+    /**
+     * @param config component configuration overriding the benchmark defaults
+     */
+    BenchmarkDatabase(int rows, Map<String, String> config) throws SQLException {
+        this.rows = rows;
+        // pooled as in the provider, H2 initializes every new connection
+        this.dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:mem:benchmark-" + System.nanoTime() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        dataSource.setMaximumPoolSize(4);
+        this.entityManagerFactory = CustomUserStorageProviderFactory.createEntityManagerFactory(dataSource);
+        seed();
+
+        this.model = new ComponentModel();
+        model.setId("benchmark");
+        model.setName("benchmark");
+        MultivaluedHashMap<String, String> componentConfig = new MultivaluedHashMap<>();
+        componentConfig.putSingle(PASSWORD_ALGORITHM_KEY, ConfigurablePasswordEncoder.BCRYPT);
+        componentConfig.putSingle(PASSWORD_COST_KEY, "4");
+        // hashes are verified on the benchmark thread
+        componentConfig.putSingle(VERIFY_THREADS_KEY, "0");
+        // a trace spans a whole Keycloak session, which a benchmark loop is not
+        componentConfig.putSingle(TRACE_THRESHOLD_MILLIS_KEY, "0");
+        config.forEach(componentConfig::putSingle);
+        model.setConfig(componentConfig);
+        // never retired, the database is closed by the benchmark
+        EntityManagerFactoryRegistry.Connection connection =
+                new EntityManagerFactoryRegistry.Connection(model.getName(), entityManagerFactory, dataSource);
+        this.resources = new ComponentResources(model, () -> connection.retain(null), null);
+
+        this.realm = Stubs.stub(RealmModel.class, Map.of("getId", "benchmark", "getName", "benchmark"));
+        this.session = Stubs.stub(KeycloakSession.class, Map.of());
+    }
+
+    private void seed() throws SQLException {
+        String hash = new ConfigurablePasswordEncoder(ConfigurablePasswordEncoder.BCRYPT, 4).encode(PASSWORD);
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement insert = connection.prepareStatement(
+                     "insert into business_users (id, email, password, enabled, blocked) values (?, ?, ?, true, false)")) {
+            connection.setAutoCommit(false);
+            for (int id = 1; id <= rows; id++) {
+                insert.setInt(1, id);
+                insert.setString(2, email(id));
+                insert.setString(3, hash);
+                insert.addBatch();
+                if (id % SEED_BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("analyze");
+            }
+            connection.setAutoCommit(true);
+        }
+    }
+
+    static String email(int id) {
+        return "user" + id + "@example.com";
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    RealmModel getRealm() {
+        return realm;
+    }
+
+    KeycloakSession getSession() {
+        return session;
+    }
+
+    ComponentModel getModel() {
+        return model;
+    }
+
+    ComponentResources getResources() {
+        return resources;
+    }
+
+    /**
+     * @return a DAO on a new entity manager, as opened for each Keycloak session
+     */
+    UserDAO openUserDAO() {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        return new UserDAO(entityManager, resources);
+    }
+
+    CustomUserStorageProvider openProvider() {
+        return new CustomUserStorageProvider(session, model, openUserDAO(), resources);
+    }
+
+    @Override
+    public void close() {
+        resources.close();
+        entityManagerFactory.close();
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("shutdown");
+        } catch (SQLException e) {
+            // the in-memory database is dropped with the JVM anyway
+        }
+        dataSource.close();
+    }
+}
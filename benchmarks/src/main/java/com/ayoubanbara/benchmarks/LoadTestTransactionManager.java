@@ -0,0 +1,102 @@
+package com.ayoubanbara.benchmarks;
+
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Session transaction of the load test: begun with the session, committing the enlisted
+ * transactions when the session ends, as Keycloak does at the end of a request.
+ */
+final class LoadTestTransactionManager implements KeycloakTransactionManager {
+
+    private final List<KeycloakTransaction> transactions = new ArrayList<>();
+    private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+    private JTAPolicy jtaPolicy = JTAPolicy.REQUIRES_NEW;
+    private boolean active;
+    private boolean rollbackOnly;
+
+    @Override
+    public void begin() {
+        active = true;
+        rollbackOnly = false;
+    }
+
+    @Override
+    public void commit() {
+        if (rollbackOnly) {
+            rollback();
+            return;
+        }
+        try {
+            transactions.forEach(KeycloakTransaction::commit);
+            afterCompletion.forEach(KeycloakTransaction::commit);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public void rollback() {
+        try {
+            transactions.forEach(KeycloakTransaction::rollback);
+            afterCompletion.forEach(KeycloakTransaction::rollback);
+        } finally {
+            end();
+        }
+    }
+
+    private void end() {
+        transactions.clear();
+        afterCompletion.clear();
+        active = false;
+    }
+
+    @Override
+    public void setRollbackOnly() {
+        rollbackOnly = true;
+    }
+
+    @Override
+    public boolean getRollbackOnly() {
+        return rollbackOnly;
+    }
+
+    @Override
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public JTAPolicy getJTAPolicy() {
+        return jtaPolicy;
+    }
+
+    @Override
+    public void setJTAPolicy(JTAPolicy policy) {
+        this.jtaPolicy = policy;
+    }
+
+    @Override
+    public void enlist(KeycloakTransaction transaction) {
+        if (active && !transaction.isActive()) {
+            transaction.begin();
+        }
+        transactions.add(transaction);
+    }
+
+    @Override
+    public void enlistAfterCompletion(KeycloakTransaction transaction) {
+        if (active && !transaction.isActive()) {
+            transaction.begin();
+        }
+        afterCompletion.add(transaction);
+    }
+
+    @Override
+    public void enlistPrepare(KeycloakTransaction transaction) {
+        enlist(transaction);
+    }
+}
@@ -0,0 +1,316 @@
+package com.ayoubanbara.benchmarks;
+
+import com.ayoubanbara.CustomUserStorageProvider;
+import com.ayoubanbara.CustomUserStorageProviderFactory;
+import com.ayoubanbara.beans.ConfigurablePasswordEncoder;
+import com.ayoubanbara.datasource.PoolMetricsTracker;
+import com.ayoubanbara.metrics.ComponentStatisticsMXBean;
+import com.ayoubanbara.metrics.LatencyHistogram;
+import com.ayoubanbara.metrics.OperationSnapshot;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+
+import javax.management.JMX;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_CONNECTION_NAME_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_JDBC_URL_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_PASSWORD_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_USERNAME_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_ALGORITHM_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_COST_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.POOL_MAX_SIZE_KEY;
+import static com.ayoubanbara.utils.Helpers.getInt;
+import static com.ayoubanbara.utils.Helpers.readSettings;
+
+/**
+ * Login storm against the provider, without Keycloak nor MySQL: the {@link CustomUserStorageProviderFactory}
+ * creates a provider per simulated request, on stubbed sessions, over an in-memory H2 database in MySQL mode.
+ * <p>
+ * Usage: {@code java -cp benchmarks/target/benchmarks.jar com.ayoubanbara.benchmarks.LoginLoadTest [settings.properties]}
+ * <p>
+ * The settings file holds provider component settings ({@code pool:maxSize}, {@code password:cost},
+ * {@code cache:maxSize}, {@code db:jdbcUrl} to run against another database, ...) plus:
+ * <ul>
+ *     <li>{@code load:rows} seeded users, 100000 by default</li>
+ *     <li>{@code load:threads} concurrent requests, 32 by default</li>
+ *     <li>{@code load:warmupSeconds} not measured, 10 by default</li>
+ *     <li>{@code load:durationSeconds} measured, 30 by default</li>
+ *     <li>{@code load:mix} relative weights of the scenarios, {@code login=90,search=8,update=2} by default</li>
+ *     <li>{@code load:pageSize} users per admin search page, 20 by default</li>
+ * </ul>
+ * Each request is a login ({@code getUserByEmail} then {@code isValid}), an admin search of a page
+ * of users, or a password update. The report gives the throughput and latency percentiles of each
+ * scenario and of opening a provider, the connection pool contention and the provider statistics.
+ */
+public class LoginLoadTest {
+
+    public static final String ROWS_KEY = "load:rows";
+    public static final String THREADS_KEY = "load:threads";
+    public static final String WARMUP_SECONDS_KEY = "load:warmupSeconds";
+    public static final String DURATION_SECONDS_KEY = "load:durationSeconds";
+    public static final String MIX_KEY = "load:mix";
+    public static final String PAGE_SIZE_KEY = "load:pageSize";
+
+    private static final String CONNECTION_NAME = "load-test";
+    private static final String INSERT = "insert into business_users (email, password, enabled, blocked) values (?, ?, true, false)";
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    enum Scenario { LOGIN, SEARCH, UPDATE }
+
+    private final CustomUserStorageProviderFactory factory = new CustomUserStorageProviderFactory();
+    private final ComponentModel model;
+    private final RealmModel realm;
+    private final int rows;
+    private final int pageSize;
+    private final Map<Scenario, Integer> mix;
+    private final Map<Scenario, LatencyHistogram> latencies = new EnumMap<>(Scenario.class);
+    private final Map<Scenario, LongAdder> errors = new EnumMap<>(Scenario.class);
+    private final LatencyHistogram sessionOpen = new LatencyHistogram();
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    public LoginLoadTest(MultivaluedHashMap<String, String> config) {
+        this.model = new ComponentModel();
+        model.setId(CONNECTION_NAME);
+        model.setName(CONNECTION_NAME);
+        model.setProviderId(factory.getId());
+        model.setConfig(config);
+        this.realm = Stubs.stub(RealmModel.class, Map.of("getId", CONNECTION_NAME, "getName", CONNECTION_NAME));
+        this.rows = getInt(config, ROWS_KEY, 100000);
+        this.pageSize = getInt(config, PAGE_SIZE_KEY, 20);
+        this.mix = parseMix(config.getFirst(MIX_KEY) == null ? "login=90,search=8,update=2" : config.getFirst(MIX_KEY));
+        for (Scenario scenario : Scenario.values()) {
+            latencies.put(scenario, new LatencyHistogram());
+            errors.put(scenario, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(DB_CONNECTION_NAME_KEY, CONNECTION_NAME);
+        config.putSingle(DB_JDBC_URL_KEY, "jdbc:h2:mem:load-test;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        config.putSingle(DB_USERNAME_KEY, "sa");
+        config.putSingle(DB_PASSWORD_KEY, "");
+        config.putSingle(PASSWORD_ALGORITHM_KEY, ConfigurablePasswordEncoder.BCRYPT);
+        config.putSingle(PASSWORD_COST_KEY, "10");
+        if (args.length > 0) {
+            config.putAll(readSettings(Paths.get(args[0])));
+        }
+        LoginLoadTest loadTest = new LoginLoadTest(config);
+        try {
+            loadTest.run(getInt(config, THREADS_KEY, 32), getInt(config, WARMUP_SECONDS_KEY, 10),
+                    getInt(config, DURATION_SECONDS_KEY, 30));
+        } finally {
+            loadTest.factory.close();
+        }
+    }
+
+    public void run(int threads, int warmupSeconds, int durationSeconds) throws Exception {
+        // the first provider builds the pool and the schema
+        openSession(provider -> null);
+        seed();
+        report("seeded %d users, running %d threads for %d s after a %d s warmup, mix %s%n", rows, threads,
+                durationSeconds, warmupSeconds, mix);
+
+        measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(() -> {
+                    long now;
+                    while ((now = System.nanoTime()) < end) {
+                        Scenario scenario = pick(ThreadLocalRandom.current().nextInt(totalWeight));
+                        boolean ok;
+                        try {
+                            ok = openSession(provider -> execute(scenario, provider));
+                        } catch (RuntimeException e) {
+                            ok = false;
+                        }
+                        if (now >= measureFrom) {
+                            latencies.get(scenario).record(System.nanoTime() - now);
+                            if (!ok) {
+                                errors.get(scenario).increment();
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        printReport(durationSeconds);
+    }
+
+    /**
+     * Runs {@code work} as one Keycloak request: a provider on a new session, committed and closed at the end.
+     */
+    private boolean openSession(ProviderWork work) {
+        LoadTestTransactionManager transactionManager = new LoadTestTransactionManager();
+        transactionManager.begin();
+        KeycloakSession session = Stubs.stub(KeycloakSession.class, Map.of("getTransactionManager", transactionManager));
+        long start = System.nanoTime();
+        // the component registry lookup and a new entity manager
+        CustomUserStorageProvider provider = factory.create(session, model);
+        if (start >= measureFrom) {
+            sessionOpen.record(System.nanoTime() - start);
+        }
+        try {
+            Boolean ok = work.run(provider);
+            transactionManager.commit();
+            return ok == null || ok;
+        } catch (RuntimeException e) {
+            transactionManager.rollback();
+            throw e;
+        } finally {
+            provider.close();
+        }
+    }
+
+    private boolean execute(Scenario scenario, CustomUserStorageProvider provider) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (scenario) {
+            case LOGIN: {
+                UserModel user = provider.getUserByEmail(BenchmarkDatabase.email(1 + random.nextInt(rows)), realm);
+                return user != null && provider.isValid(realm, user, UserCredentialModel.password(BenchmarkDatabase.PASSWORD));
+            }
+            case SEARCH: {
+                provider.searchForUser("user" + (1 + random.nextInt(999)), realm, random.nextInt(10) * pageSize, pageSize);
+                return true;
+            }
+            case UPDATE: {
+                UserModel user = provider.getUserByEmail(BenchmarkDatabase.email(1 + random.nextInt(rows)), realm);
+                // the same password, logins of the user keep succeeding
+                return user != null && provider.updateCredential(realm, user, UserCredentialModel.password(BenchmarkDatabase.PASSWORD));
+            }
+            default:
+                throw new IllegalStateException(scenario.name());
+        }
+    }
+
+    private Scenario pick(int draw) {
+        int bound = 0;
+        for (Map.Entry<Scenario, Integer> entry : mix.entrySet()) {
+            bound += entry.getValue();
+            if (draw < bound) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("empty mix");
+    }
+
+    private void seed() throws SQLException {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+        String hash = new ConfigurablePasswordEncoder(config.getFirst(PASSWORD_ALGORITHM_KEY),
+                getInt(config, PASSWORD_COST_KEY, 10)).encode(BenchmarkDatabase.PASSWORD);
+        try (Connection connection = DriverManager.getConnection(config.getFirst(DB_JDBC_URL_KEY),
+                config.getFirst(DB_USERNAME_KEY), config.getFirst(DB_PASSWORD_KEY));
+             PreparedStatement insert = connection.prepareStatement(INSERT)) {
+            connection.setAutoCommit(false);
+            for (int id = 1; id <= rows; id++) {
+                insert.setString(1, BenchmarkDatabase.email(id));
+                insert.setString(2, hash);
+                insert.addBatch();
+                if (id % SEED_BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        }
+    }
+
+    private void printReport(int durationSeconds) throws MalformedObjectNameException {
+        report("%n%-14s %10s %10s %8s %10s %10s %10s %10s%n", "scenario", "requests", "req/s", "errors",
+                "p50 ms", "p99 ms", "p999 ms", "max ms");
+        long total = 0;
+        for (Scenario scenario : Scenario.values()) {
+            LatencyHistogram histogram = latencies.get(scenario);
+            total += histogram.getCount();
+            printRow(scenario.name().toLowerCase(Locale.ROOT), histogram, errors.get(scenario).sum(), durationSeconds);
+        }
+        report("%-14s %10d %10.1f%n", "total", total, (double) total / durationSeconds);
+        printRow("session open", sessionOpen, 0, 0);
+
+        int poolSize = getInt(model.getConfig(), POOL_MAX_SIZE_KEY, 10);
+        PoolMetricsTracker pool = factory.getPoolMetrics(CONNECTION_NAME);
+        report("%nconnection pool (max %d): %s%n", poolSize, pool);
+
+        ComponentStatisticsMXBean statistics = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName("com.ayoubanbara:type=UserStorageProvider,component=" + ObjectName.quote(model.getId())),
+                ComponentStatisticsMXBean.class);
+        report("%nprovider operations:%n");
+        for (OperationSnapshot operation : statistics.getOperations()) {
+            if (operation.getCalls() > 0) {
+                report("  %s%n", operation);
+            }
+        }
+        report("password verifier: %s%nuser cache: %s%n", statistics.getPasswordVerifier(), statistics.getUserCache());
+        for (String replica : statistics.getReadReplicas()) {
+            report("read replica: %s%n", replica);
+        }
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram, long errors, int durationSeconds) {
+        report("%-14s %10d %10s %8d %10.3f %10.3f %10.3f %10.3f%n", name, histogram.getCount(),
+                durationSeconds > 0 ? String.format("%.1f", (double) histogram.getCount() / durationSeconds) : "-",
+                errors, histogram.getPercentileMillis(50), histogram.getPercentileMillis(99),
+                histogram.getPercentileMillis(99.9), histogram.getMaxMillis());
+    }
+
+    static Map<Scenario, Integer> parseMix(String mix) {
+        Map<Scenario, Integer> weights = new EnumMap<>(Scenario.class);
+        for (String part : mix.split(",")) {
+            String[] weight = part.trim().split("=");
+            if (weight.length != 2) {
+                throw new IllegalArgumentException("Invalid mix, expected scenario=weight,...: " + mix);
+            }
+            int value = Integer.parseInt(weight[1].trim());
+            if (value > 0) {
+                weights.put(Scenario.valueOf(weight[0].trim().toUpperCase(Locale.ROOT)), value);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        }
+        return weights;
+    }
+
+    private static void report(String format, Object... args) {
+        System.out.print(String.format(format, args));
+    }
+
+    @FunctionalInterface
+    private interface ProviderWork {
+        Boolean run(CustomUserStorageProvider provider);
+    }
+}
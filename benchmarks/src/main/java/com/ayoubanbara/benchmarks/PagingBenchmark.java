@@ -0,0 +1,68 @@
+package com.ayoubanbara.benchmarks;
+
+import com.ayoubanbara.dao.UserDAO;
+import com.ayoubanbara.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A page of {@code pageSize} users at each {@code offset}, of the whole table and of a search
+ * matching every user.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PagingBenchmark {
+
+    @Param({"100000"})
+    private int rows;
+
+    @Param({"0", "1000", "10000", "90000"})
+    private int offset;
+
+    @Param({"20"})
+    private int pageSize;
+
+    private BenchmarkDatabase database;
+    private UserDAO userDAO;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase(rows, Map.of());
+        userDAO = database.openUserDAO();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        userDAO.close();
+        database.close();
+    }
+
+    @Benchmark
+    public List<User> findAll() {
+        return userDAO.findAll(offset, pageSize);
+    }
+
+    @Benchmark
+    public List<User> searchForUserByUsernameOrEmail() {
+        return userDAO.searchForUserByUsernameOrEmail("user", offset, pageSize);
+    }
+}
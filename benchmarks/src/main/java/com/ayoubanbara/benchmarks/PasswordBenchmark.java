@@ -0,0 +1,69 @@
+package com.ayoubanbara.benchmarks;
+
+import com.ayoubanbara.CustomUserStorageProvider;
+import com.ayoubanbara.model.User;
+import com.ayoubanbara.representations.UserRepresentation;
+import org.keycloak.credential.CredentialInput;
+import org.keycloak.models.UserCredentialModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_COST_KEY;
+
+/**
+ * {@link CustomUserStorageProvider#isValid} of a correct password, hashed with bcrypt at each {@code strength}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class PasswordBenchmark {
+
+    @Param({"8", "10", "12"})
+    private int strength;
+
+    private BenchmarkDatabase database;
+    private CustomUserStorageProvider provider;
+    private UserRepresentation user;
+    private CredentialInput credential;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase(1, Map.of(PASSWORD_COST_KEY, String.valueOf(strength)));
+        provider = database.openProvider();
+        User entity = new User()
+                .setId(1)
+                .setEmail(BenchmarkDatabase.email(1))
+                .setPassword(database.getResources().getPasswordEncoder().encode(BenchmarkDatabase.PASSWORD))
+                .setEnabled(true);
+        user = provider.getUserRepresentation(entity, database.getRealm());
+        credential = UserCredentialModel.password(BenchmarkDatabase.PASSWORD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        provider.close();
+        database.close();
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return provider.isValid(database.getRealm(), user, credential);
+    }
+}
@@ -0,0 +1,76 @@
+package com.ayoubanbara.benchmarks;
+
+import org.keycloak.common.util.MultivaluedHashMap;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Minimal implementations of the Keycloak interfaces the provider touches, so the benchmarks run
+ * without a Keycloak server. Methods answer from the given map by name, or an empty value of their
+ * return type; Keycloak interfaces are answered with a stub of their own.
+ */
+final class Stubs {
+
+    private Stubs() {
+    }
+
+    static <T> T stub(Class<T> type, Map<String, Object> answers) {
+        Map<Method, Object> nested = new ConcurrentHashMap<>();
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (self, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return self == args[0];
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "toString":
+                    return type.getSimpleName() + " stub";
+                default:
+                    break;
+            }
+            if (answers.containsKey(method.getName())) {
+                return answers.get(method.getName());
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType.isInterface() && returnType.getName().startsWith("org.keycloak.")) {
+                return nested.computeIfAbsent(method, m -> stub(returnType, Map.of()));
+            }
+            return empty(returnType);
+        });
+        return type.cast(proxy);
+    }
+
+    private static Object empty(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == Stream.class) {
+            return Stream.empty();
+        }
+        if (type == MultivaluedHashMap.class) {
+            return new MultivaluedHashMap<>();
+        }
+        if (type == List.class) {
+            return Collections.emptyList();
+        }
+        if (type == Set.class) {
+            return Collections.emptySet();
+        }
+        if (type == Map.class) {
+            return Collections.emptyMap();
+        }
+        return null;
+    }
+}
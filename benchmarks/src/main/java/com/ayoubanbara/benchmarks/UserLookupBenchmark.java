@@ -0,0 +1,73 @@
+package com.ayoubanbara.benchmarks;
+
+import com.ayoubanbara.dao.UserDAO;
+import com.ayoubanbara.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.ayoubanbara.CustomUserStorageProviderFactory.CACHE_MAX_SIZE_KEY;
+
+/**
+ * {@link UserDAO#getUserByEmail} and {@link UserDAO#getUserById} of random existing users, with
+ * and without the component user cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UserLookupBenchmark {
+
+    @Param({"10000", "100000"})
+    private int rows;
+
+    @Param({"0", "10000"})
+    private int cacheMaxSize;
+
+    private BenchmarkDatabase database;
+    private UserDAO userDAO;
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase(rows, Map.of(CACHE_MAX_SIZE_KEY, String.valueOf(cacheMaxSize)));
+        userDAO = database.openUserDAO();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        userDAO.close();
+        database.close();
+    }
+
+    @Benchmark
+    public Optional<User> getUserByEmail() {
+        return userDAO.getUserByEmail(BenchmarkDatabase.email(nextId()));
+    }
+
+    @Benchmark
+    public User getUserById() {
+        return userDAO.getUserById(String.valueOf(nextId()));
+    }
+
+    private int nextId() {
+        return 1 + random.nextInt(rows);
+    }
+}
@@ -0,0 +1,75 @@
+package com.ayoubanbara.benchmarks;
+
+import com.ayoubanbara.CustomUserStorageProvider;
+import com.ayoubanbara.model.User;
+import com.ayoubanbara.representations.UserRepresentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wrapping a {@link User} in a {@link UserRepresentation}, and reading its attributes as the protocol mappers do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UserRepresentationBenchmark {
+
+    private BenchmarkDatabase database;
+    private CustomUserStorageProvider provider;
+    private User entity;
+    private UserRepresentation user;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase(1, Map.of());
+        provider = database.openProvider();
+        entity = new User()
+                .setId(1)
+                .setEmail(BenchmarkDatabase.email(1))
+                .setPassword(BenchmarkDatabase.PASSWORD)
+                .setPhone("+212600000000")
+                .setEnabled(true);
+        user = provider.getUserRepresentation(entity, database.getRealm());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        provider.close();
+        database.close();
+    }
+
+    @Benchmark
+    public UserRepresentation construct() {
+        return provider.getUserRepresentation(entity, database.getRealm());
+    }
+
+    @Benchmark
+    public Map<String, List<String>> constructAndGetAttributes() {
+        return provider.getUserRepresentation(entity, database.getRealm()).getAttributes();
+    }
+
+    /**
+     * Repeated reads of the same user, served by its attribute snapshot.
+     */
+    @Benchmark
+    public Map<String, List<String>> getAttributes() {
+        return user.getAttributes();
+    }
+}
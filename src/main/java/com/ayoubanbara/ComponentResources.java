@@ -0,0 +1,374 @@
+package com.ayoubanbara;
+
+import com.ayoubanbara.beans.ConfigurablePasswordEncoder;
+import com.ayoubanbara.beans.PasswordVerifier;
+import com.ayoubanbara.cache.KeysetCursorCache;
+import com.ayoubanbara.cache.NegativeLookupFilter;
+import com.ayoubanbara.cache.UserCountProvider;
+import com.ayoubanbara.cache.UserCache;
+import com.ayoubanbara.cache.VerifiedCredentialCache;
+import com.ayoubanbara.dao.UserDAO;
+import com.ayoubanbara.metrics.ComponentStatistics;
+import com.ayoubanbara.metrics.ProviderMetrics;
+import com.ayoubanbara.metrics.Tracer;
+import com.ayoubanbara.datasource.EntityManagerFactoryRegistry;
+import com.ayoubanbara.datasource.SecondLevelCache;
+import com.ayoubanbara.model.User;
+import com.ayoubanbara.search.NgramIndex;
+import com.ayoubanbara.search.SearchMode;
+import com.ayoubanbara.sync.UserChangeWatcher;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.storage.StorageId;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static com.ayoubanbara.CustomUserStorageProviderFactory.CACHE_MAX_SIZE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.CACHE_TTL_SECONDS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.CHANGES_LOOKBACK_SECONDS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.CHANGES_MAX_PER_POLL_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.CHANGES_POLL_SECONDS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.COUNT_MAX_STALENESS_SECONDS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.COUNT_MODE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.COUNT_REFRESH_SECONDS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.CREDENTIAL_CACHE_MAX_SIZE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.CREDENTIAL_CACHE_TTL_SECONDS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.FILTER_ENABLED_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.FILTER_EXPECTED_ENTRIES_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.FILTER_FALSE_POSITIVE_RATE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.FILTER_REBUILD_SECONDS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.FILTER_REFRESH_SECONDS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.GROUPS_NATIVE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PAGING_CURSOR_CACHE_SIZE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PAGING_KEYSET_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_ALGORITHM_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_COST_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_REHASH_ON_LOGIN_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_TARGET_MILLIS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.SEARCH_MODE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.SEARCH_NGRAM_INDEX_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.SEARCH_NGRAM_MAX_CANDIDATES_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.SEARCH_NGRAM_REBUILD_SECONDS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.SEARCH_NGRAM_REFRESH_SECONDS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.STREAM_FETCH_SIZE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.TRACE_BUFFER_SIZE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.TRACE_THRESHOLD_MILLIS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.VERIFY_MAX_WAIT_MILLIS_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.VERIFY_QUEUE_SIZE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.VERIFY_THREADS_KEY;
+import static com.ayoubanbara.utils.Helpers.getBoolean;
+import static com.ayoubanbara.utils.Helpers.getInt;
+import static com.ayoubanbara.utils.Helpers.isBlank;
+
+/**
+ * State shared by every {@link CustomUserStorageProvider} created for the same provider component.
+ * Built once per component, dropped when the component is updated or removed.
+ */
+@Slf4j
+public class ComponentResources {
+
+    private final String componentId;
+    private final ComponentModel model;
+    private final Supplier<EntityManagerFactoryRegistry.Connection> connection;
+    private final UserCache userCache;
+    private final NegativeLookupFilter negativeLookupFilter;
+    private final PasswordVerifier passwordVerifier;
+    private volatile ConfigurablePasswordEncoder passwordEncoder;
+    private final boolean rehashOnLogin;
+    private final VerifiedCredentialCache verifiedCredentialCache;
+    private final KeysetCursorCache keysetCursors;
+    private final SearchMode searchMode;
+    private final NgramIndex ngramIndex;
+    private final int fetchSize;
+    private final UserCountProvider userCountProvider;
+    private final boolean nativeGroups;
+    private final UserChangeWatcher changeWatcher;
+    private final ProviderMetrics metrics;
+    private final Tracer tracer;
+    private ComponentStatistics statistics;
+    private ScheduledExecutorService scheduler;
+
+    public ComponentResources(ComponentModel model, Supplier<EntityManagerFactoryRegistry.Connection> connection,
+                              KeycloakSessionFactory sessionFactory) {
+        this.componentId = model.getId();
+        this.model = model;
+        this.connection = connection;
+        MultivaluedHashMap<String, String> config = model.getConfig();
+        this.fetchSize = getInt(config, STREAM_FETCH_SIZE_KEY, 500);
+        this.nativeGroups = getBoolean(config, GROUPS_NATIVE_KEY, false);
+        int traceThreshold = getInt(config, TRACE_THRESHOLD_MILLIS_KEY, 500);
+        this.tracer = traceThreshold > 0
+                ? new Tracer(model.getName(), traceThreshold, TimeUnit.MILLISECONDS, getInt(config, TRACE_BUFFER_SIZE_KEY, 100))
+                : null;
+        this.metrics = new ProviderMetrics(tracer);
+        int cacheMaxSize = getInt(config, CACHE_MAX_SIZE_KEY, 0);
+        this.userCache = cacheMaxSize > 0
+                ? new UserCache(cacheMaxSize, getInt(config, CACHE_TTL_SECONDS_KEY, 60), TimeUnit.SECONDS)
+                : null;
+
+        if (getBoolean(config, FILTER_ENABLED_KEY, false)) {
+            String falsePositiveRate = config.getFirst(FILTER_FALSE_POSITIVE_RATE_KEY);
+            this.negativeLookupFilter = new NegativeLookupFilter(getInt(config, FILTER_EXPECTED_ENTRIES_KEY, 1000000),
+                    isBlank(falsePositiveRate) ? 0.01 : Double.parseDouble(falsePositiveRate),
+                    getInt(config, CHANGES_LOOKBACK_SECONDS_KEY, 60), getInt(config, FILTER_REBUILD_SECONDS_KEY, 3600),
+                    TimeUnit.SECONDS);
+            int refreshSeconds = Math.max(1, getInt(config, FILTER_REFRESH_SECONDS_KEY, 30));
+            schedule(() -> withUserDAO(negativeLookupFilter::refresh), refreshSeconds);
+        } else {
+            this.negativeLookupFilter = null;
+        }
+
+        int verifyThreads = getInt(config, VERIFY_THREADS_KEY, Runtime.getRuntime().availableProcessors());
+        this.passwordVerifier = verifyThreads > 0
+                ? new PasswordVerifier("user-provider-" + componentId, verifyThreads,
+                        getInt(config, VERIFY_QUEUE_SIZE_KEY, 100), getInt(config, VERIFY_MAX_WAIT_MILLIS_KEY, 2000))
+                : null;
+
+        String algorithm = isBlank(config.getFirst(PASSWORD_ALGORITHM_KEY))
+                ? ConfigurablePasswordEncoder.BCRYPT : config.getFirst(PASSWORD_ALGORITHM_KEY);
+        int cost = getInt(config, PASSWORD_COST_KEY, 0);
+        int targetMillis = getInt(config, PASSWORD_TARGET_MILLIS_KEY, 0);
+        this.passwordEncoder = new ConfigurablePasswordEncoder(algorithm, cost > 0 ? cost : ConfigurablePasswordEncoder.defaultCost(algorithm));
+        if (cost <= 0 && targetMillis > 0) {
+            // takes up to seconds, logins use the default cost meanwhile
+            submit(() -> passwordEncoder = new ConfigurablePasswordEncoder(algorithm,
+                    ConfigurablePasswordEncoder.calibrate(algorithm, targetMillis)));
+        }
+        this.rehashOnLogin = getBoolean(config, PASSWORD_REHASH_ON_LOGIN_KEY, true);
+
+        int credentialCacheTtl = getInt(config, CREDENTIAL_CACHE_TTL_SECONDS_KEY, 0);
+        this.verifiedCredentialCache = credentialCacheTtl > 0
+                ? new VerifiedCredentialCache(getInt(config, CREDENTIAL_CACHE_MAX_SIZE_KEY, 10000), credentialCacheTtl, TimeUnit.SECONDS)
+                : null;
+
+        this.keysetCursors = getBoolean(config, PAGING_KEYSET_KEY, true)
+                ? new KeysetCursorCache(getInt(config, PAGING_CURSOR_CACHE_SIZE_KEY, 1000))
+                : null;
+
+        this.searchMode = SearchMode.of(config.getFirst(SEARCH_MODE_KEY));
+        if (getBoolean(config, SEARCH_NGRAM_INDEX_KEY, false) || searchMode == SearchMode.NGRAM) {
+            this.ngramIndex = new NgramIndex(getInt(config, SEARCH_NGRAM_MAX_CANDIDATES_KEY, 20000),
+                    getInt(config, CHANGES_LOOKBACK_SECONDS_KEY, 60), getInt(config, SEARCH_NGRAM_REBUILD_SECONDS_KEY, 3600),
+                    TimeUnit.SECONDS);
+            schedule(() -> withUserDAO(ngramIndex::refresh), Math.max(1, getInt(config, SEARCH_NGRAM_REFRESH_SECONDS_KEY, 30)));
+        } else {
+            this.ngramIndex = null;
+        }
+
+        this.userCountProvider = new UserCountProvider(UserCountProvider.Mode.of(config.getFirst(COUNT_MODE_KEY)),
+                getInt(config, COUNT_MAX_STALENESS_SECONDS_KEY, 300), TimeUnit.SECONDS);
+        if (userCountProvider.getMode() == UserCountProvider.Mode.CACHED) {
+            schedule(() -> withUserDAO(userCountProvider::refresh), Math.max(1, getInt(config, COUNT_REFRESH_SECONDS_KEY, 60)));
+        }
+
+        int changesPollSeconds = getInt(config, CHANGES_POLL_SECONDS_KEY, 0);
+        if (changesPollSeconds > 0) {
+            this.changeWatcher = new UserChangeWatcher(sessionFactory, model,
+                    Math.max(1, getInt(config, CHANGES_MAX_PER_POLL_KEY, 1000)),
+                    getInt(config, CHANGES_LOOKBACK_SECONDS_KEY, 60), TimeUnit.SECONDS, this::evict);
+            schedule(() -> withUserDAO(changeWatcher::poll), changesPollSeconds);
+        } else {
+            this.changeWatcher = null;
+        }
+    }
+
+    /**
+     * @return the user lookup cache, or null when disabled for this component
+     */
+    public UserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * @return the unknown email filter, or null when disabled for this component
+     */
+    public NegativeLookupFilter getNegativeLookupFilter() {
+        return negativeLookupFilter;
+    }
+
+    /**
+     * @return the password verification pool, or null to verify on the calling thread
+     */
+    public PasswordVerifier getPasswordVerifier() {
+        return passwordVerifier;
+    }
+
+    public ConfigurablePasswordEncoder getPasswordEncoder() {
+        return passwordEncoder;
+    }
+
+    /**
+     * @return whether outdated hashes are re-encoded after a successful login
+     */
+    public boolean isRehashOnLogin() {
+        return rehashOnLogin;
+    }
+
+    /**
+     * @return the cache of successful password verifications, or null when disabled for this component
+     */
+    public VerifiedCredentialCache getVerifiedCredentialCache() {
+        return verifiedCredentialCache;
+    }
+
+    /**
+     * @return the page cursors of keyset pagination, or null when pages always use offsets
+     */
+    public KeysetCursorCache getKeysetCursors() {
+        return keysetCursors;
+    }
+
+    /**
+     * @return the number of rows fetched per round trip when streaming results
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * @return whether group memberships are also read from {@code business_user_groups}
+     */
+    public boolean isNativeGroups() {
+        return nativeGroups;
+    }
+
+    public UserCountProvider getUserCountProvider() {
+        return userCountProvider;
+    }
+
+    public SearchMode getSearchMode() {
+        return searchMode;
+    }
+
+    /**
+     * @return the in-memory n-gram index of the emails, or null when disabled for this component
+     */
+    public NgramIndex getNgramIndex() {
+        return ngramIndex;
+    }
+
+    public ProviderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the tracer of the provider sessions, or null when disabled for this component
+     */
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Publishes the statistics of the component through JMX until it is closed.
+     */
+    public synchronized void publish(ComponentStatistics statistics) {
+        this.statistics = statistics;
+        statistics.register(componentId);
+    }
+
+    /**
+     * @return the watcher of the changes made by other systems, or null when disabled for this component
+     */
+    public UserChangeWatcher getChangeWatcher() {
+        return changeWatcher;
+    }
+
+    /**
+     * Drops a user changed outside of this provider from the caches of the component.
+     */
+    public void evict(User user) {
+        if (userCache != null) {
+            userCache.invalidate(user.getId());
+        }
+        if (verifiedCredentialCache != null) {
+            verifiedCredentialCache.invalidate(StorageId.keycloakId(model, user.getId().toString()));
+        }
+        EntityManagerFactoryRegistry.Connection leased = connection.get();
+        if (leased != null) {
+            try {
+                SecondLevelCache.evict(leased.getEntityManagerFactory(), user.getId());
+            } finally {
+                leased.release();
+            }
+        }
+    }
+
+    private synchronized void schedule(Runnable task, long periodSeconds) {
+        scheduler().scheduleWithFixedDelay(logged(task), 0, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    private synchronized void submit(Runnable task) {
+        scheduler().execute(logged(task));
+    }
+
+    private ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "user-provider-" + componentId);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private Runnable logged(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.warn("background task of component {} failed", componentId, e);
+            }
+        };
+    }
+
+    /**
+     * Runs the work with a DAO of the component's connection, skipped while the connection is not started.
+     */
+    private void withUserDAO(Consumer<UserDAO> work) {
+        EntityManagerFactoryRegistry.Connection leased = connection.get();
+        if (leased == null) {
+            return;
+        }
+        UserDAO userDAO;
+        try {
+            userDAO = new UserDAO(leased.getEntityManagerFactory().createEntityManager());
+        } catch (RuntimeException e) {
+            leased.release();
+            throw e;
+        }
+        userDAO.onClose(leased::release);
+        try {
+            work.accept(userDAO);
+        } finally {
+            userDAO.close();
+        }
+    }
+
+    public synchronized void close() {
+        if (statistics != null) {
+            statistics.unregister();
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (passwordVerifier != null) {
+            passwordVerifier.close();
+        }
+        if (userCache != null) {
+            userCache.clear();
+        }
+        if (verifiedCredentialCache != null) {
+            verifiedCredentialCache.clear();
+        }
+        if (keysetCursors != null) {
+            keysetCursors.clear();
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package com.ayoubanbara;
 
 
-import com.ayoubanbara.beans.PasswordEncoderSingleton;
+import com.ayoubanbara.beans.PasswordVerifier;
+import com.ayoubanbara.cache.VerifiedCredentialCache;
+import com.ayoubanbara.dao.GroupMembershipLoader;
 import com.ayoubanbara.dao.UserDAO;
+import com.ayoubanbara.metrics.Operation;
+import com.ayoubanbara.metrics.Trace;
+import com.ayoubanbara.metrics.Tracer;
 import com.ayoubanbara.model.User;
 import com.ayoubanbara.representations.UserRepresentation;
+import com.ayoubanbara.sync.UserImporter;
 import lombok.extern.slf4j.Slf4j;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
@@ -30,9 +36,10 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Slf4j
 public class CustomUserStorageProvider implements UserStorageProvider,
@@ -41,43 +48,113 @@ public class CustomUserStorageProvider implements UserStorageProvider,
     private final KeycloakSession session;
     private final ComponentModel model;
     private final UserDAO userDAO;
+    private final ComponentResources resources;
+    private final GroupMembershipLoader groupMemberships;
+    private final Trace trace;
 
-    public CustomUserStorageProvider(KeycloakSession session, ComponentModel model, UserDAO userDAO) {
+    public CustomUserStorageProvider(KeycloakSession session, ComponentModel model, UserDAO userDAO, ComponentResources resources) {
         this.session = session;
         this.model = model;
         this.userDAO = userDAO;
+        this.resources = resources;
+        this.groupMemberships = resources.isNativeGroups() ? new GroupMembershipLoader(userDAO) : null;
+        Tracer tracer = resources.getTracer();
+        this.trace = tracer == null ? null : tracer.begin();
     }
 
     @Override
     public void close() {
-        userDAO.close();
+        try {
+            if (trace != null) {
+                trace.end();
+            }
+        } finally {
+            userDAO.close();
+        }
     }
 
     @Override
     public boolean isConfiguredFor(RealmModel realm, UserModel user, String credentialType) {
-        log.info("isConfiguredFor(" + realm + ", " + user + ", " + credentialType + ")");
+        log.debug("isConfiguredFor({}, {}, {})", realm, user, credentialType);
         return supportsCredentialType(credentialType) && getPassword(user) != null;
     }
 
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput credentialInput) {
-        log.info("isValid(" + realm + ", " + user + ", " + credentialInput + ")");
+        log.debug("isValid({}, {}, {})", realm, user, credentialInput);
+        return timed(Operation.IS_VALID, () -> validate(user, credentialInput));
+    }
 
+    private boolean validate(UserModel user, CredentialInput credentialInput) {
         if (!(credentialInput instanceof UserCredentialModel)) return false;
         if (supportsCredentialType(credentialInput.getType())) {
             final String password = getPassword(user);
-            final PasswordEncoder passwordEncoder= PasswordEncoderSingleton.getInstance();
-            return password != null && passwordEncoder.matches(credentialInput.getChallengeResponse(),password);
+            final PasswordEncoder passwordEncoder= resources.getPasswordEncoder();
+            if (password == null) {
+                return false;
+            }
+            final VerifiedCredentialCache verifiedCredentialCache = resources.getVerifiedCredentialCache();
+            if (verifiedCredentialCache != null) {
+                if (!user.isEnabled()) {
+                    verifiedCredentialCache.invalidate(user.getId());
+                } else if (verifiedCredentialCache.isVerified(user.getId(), credentialInput.getChallengeResponse(), password)) {
+                    return true;
+                }
+            }
+            final PasswordVerifier passwordVerifier = resources.getPasswordVerifier();
+            final long start = System.nanoTime();
+            boolean valid = timed(Operation.HASH_VERIFY, () -> passwordVerifier != null
+                    ? passwordVerifier.matches(passwordEncoder, credentialInput.getChallengeResponse(), password)
+                    : passwordEncoder.matches(credentialInput.getChallengeResponse(), password));
+            final long verificationNanos = System.nanoTime() - start;
+            String stored = password;
+            if (valid && resources.isRehashOnLogin() && passwordEncoder.upgradeEncoding(password)) {
+                stored = rehash(user, credentialInput.getChallengeResponse(), password);
+            }
+            if (valid && verifiedCredentialCache != null && user.isEnabled()) {
+                verifiedCredentialCache.record(user.getId(), credentialInput.getChallengeResponse(), stored, verificationNanos);
+            }
+            return valid;
         } else {
             return false; // invalid cred type
         }
     }
 
 
+    /**
+     * @return the hash stored for the user afterwards, the re-encoded one or {@code password} on failure
+     */
+    private String rehash(UserModel userModel, String rawPassword, String password) {
+        try {
+            UserRepresentation user = getUserRepresentationForUpdate(userModel);
+            if (user == null) {
+                return password;
+            }
+            user.setEncodedPassword(encode(rawPassword));
+            log.info("password of user {} re-encoded with {}", user.getId(), resources.getPasswordEncoder().getAlgorithm());
+            return user.getPassword();
+        } catch (RuntimeException e) {
+            // the login itself succeeded, the hash is upgraded on a later one
+            log.warn("failed to re-encode password of user {}", userModel.getId(), e);
+            return password;
+        }
+    }
+
+    /**
+     * Encodes on the password verification pool when enabled, like the verifications.
+     */
+    private String encode(String rawPassword) {
+        final PasswordEncoder passwordEncoder = resources.getPasswordEncoder();
+        final PasswordVerifier passwordVerifier = resources.getPasswordVerifier();
+        return timed(Operation.HASH_ENCODE, () -> passwordVerifier != null
+                ? passwordVerifier.encode(passwordEncoder, rawPassword)
+                : passwordEncoder.encode(rawPassword));
+    }
+
     @Override
     public boolean supportsCredentialType(String credentialType) {
         boolean result = PasswordCredentialModel.TYPE.equals(credentialType);
-        log.info("supportsCredentialType({}) result: {}", credentialType,result);
+        log.debug("supportsCredentialType({}) result: {}", credentialType, result);
         return result;
     }
 
@@ -85,29 +162,44 @@ public class CustomUserStorageProvider implements UserStorageProvider,
     @Override
     public boolean updateCredential(RealmModel realm, UserModel userModel, CredentialInput input) {
         // todo remove this
-        log.info("updateCredential( {}, {}, {})",realm,userModel,input);
+        log.debug("updateCredential( {}, {}, {})",realm,userModel,input);
         //throw new ReadOnlyException("user is read only for this update");
         if (!supportsCredentialType(input.getType()) || !(input instanceof UserCredentialModel)) return false;
-        String id = StorageId.externalId(userModel.getId());
-        User user = userDAO.getUserById(id);
-
-        // user.setUsername(userModel.getUsername());
-        PasswordEncoder passwordEncoder=PasswordEncoderSingleton.getInstance();
-        user.setPassword(passwordEncoder.encode(input.getChallengeResponse()));
-        userDAO.updateUser(user);
-        return true;
+        return timed(Operation.UPDATE_CREDENTIAL, () -> {
+            invalidateCachedUser(userModel);
+            User user = userDAO.getUserForUpdate(externalId(userModel));
+            if (user == null) {
+                return false;
+            }
+
+            // user.setUsername(userModel.getUsername());
+            user.setPassword(encode(input.getChallengeResponse()));
+            userDAO.updateUser(user, "password");
+            invalidateVerifiedCredential(userModel);
+            return true;
+        });
     }
     @Override
     public void disableCredentialType(RealmModel realm, UserModel user, String credentialType) {
-        log.info("disableCredentialType({}, {}, {})",realm,user,credentialType);
+        log.debug("disableCredentialType({}, {}, {})",realm,user,credentialType);
         // throw new ReadOnlyException("user is read only for this update");
         if (!supportsCredentialType(credentialType)) return;
-        getUserRepresentation(user).setPassword(null);
+        invalidateVerifiedCredential(user);
+        UserRepresentation userRepresentation = getUserRepresentationForUpdate(user);
+        if (userRepresentation != null) {
+            userRepresentation.setPassword(null);
+        }
+    }
+
+    private void invalidateVerifiedCredential(UserModel user) {
+        if (resources.getVerifiedCredentialCache() != null) {
+            resources.getVerifiedCredentialCache().invalidate(user.getId());
+        }
     }
 
     @Override
     public Set<String> getDisableableCredentialTypes(RealmModel realm, UserModel user) {
-        if (getUserRepresentation(user).getPassword() != null) {
+        if (getPassword(user) != null) {
             Set<String> set = new HashSet<>();
             set.add(PasswordCredentialModel.TYPE);
             return set;
@@ -116,116 +208,215 @@ public class CustomUserStorageProvider implements UserStorageProvider,
         }
     }
 
+    /**
+     * Resolves the user of this provider behind a Keycloak user model for reading, from the user cache
+     * when enabled. A cached model is left in the Keycloak cache.
+     */
     public UserRepresentation getUserRepresentation(UserModel user) {
-        UserRepresentation userRepresentation ;
+        if (user instanceof UserRepresentation) {
+            return (UserRepresentation) user;
+        }
+        // a cached model, or a local user imported by the synchronization
+        User entity = userDAO.getUserById(externalId(user));
+        return entity == null ? null : getUserRepresentation(entity, session.getContext().getRealm());
+    }
+
+    /**
+     * Resolves the user behind a Keycloak user model for a write, read from the primary database. A
+     * cached model is invalidated in the Keycloak cache, as it is about to change.
+     */
+    private UserRepresentation getUserRepresentationForUpdate(UserModel user) {
+        invalidateCachedUser(user);
+        User entity = userDAO.getUserForUpdate(externalId(user));
+        return entity == null ? null : getUserRepresentation(entity, session.getContext().getRealm());
+    }
+
+    private static void invalidateCachedUser(UserModel user) {
         if (user instanceof CachedUserModel) {
-            userRepresentation = (UserRepresentation) ((CachedUserModel) user).getDelegateForUpdate();
-        } else {
-            userRepresentation = (UserRepresentation) user;
+            // registers the invalidation of the cached user for the session
+            ((CachedUserModel) user).getDelegateForUpdate();
         }
-        return userRepresentation;
+    }
+
+    /**
+     * @return the business_users id of a user of this provider, imported or not
+     */
+    private static String externalId(UserModel user) {
+        String importedId = user.getFirstAttribute(UserImporter.EXTERNAL_ID_ATTRIBUTE);
+        return importedId != null ? importedId : StorageId.externalId(user.getId());
     }
 
     public UserRepresentation getUserRepresentation(User user, RealmModel realm) {
-        return new UserRepresentation(session, realm, model, user, userDAO);
+        if (groupMemberships != null && user != null) {
+            groupMemberships.register(user.getId());
+        }
+        return new UserRepresentation(session, realm, model, user, userDAO, resources.getPasswordEncoder(), groupMemberships);
     }
 
     @Override
     public int getUsersCount(RealmModel realm) {
-        log.info("getUsersCount( {} )",realm);
-        return userDAO.size();
+        log.debug("getUsersCount( {} )",realm);
+        return timed(Operation.GET_USERS_COUNT, () -> resources.getUserCountProvider().count(userDAO));
     }
 
     @Override
     public List<UserModel> getUsers(RealmModel realm) {
-        log.info("getUsers( {} )",realm);
-        return userDAO.findAll()
-                .stream()
-                .map(user -> new UserRepresentation(session, realm, model, user, userDAO))
-                .collect(Collectors.toList());
+        log.debug("getUsers( {} )",realm);
+        return timed(Operation.GET_USERS, () -> {
+            try (Stream<UserModel> users = getUsersStream(realm)) {
+                return users.collect(Collectors.toList());
+            }
+        });
+    }
+
+    @Override
+    public Stream<UserModel> getUsersStream(RealmModel realm) {
+        log.debug("getUsersStream( {} )",realm);
+        return userDAO.streamAll()
+                .map(user -> getUserRepresentation(user, realm));
+    }
+
+    @Override
+    public Stream<UserModel> getUsersStream(RealmModel realm, Integer firstResult, Integer maxResults) {
+        int first = firstResult(firstResult);
+        int max = maxResults(maxResults);
+        if (first == 0 && max == Integer.MAX_VALUE) {
+            return getUsersStream(realm);
+        }
+        return getUsers(realm, first, max).stream();
     }
 
     @Override
     public List<UserModel> getUsers(RealmModel realm, int firstResult, int maxResults) {
-        log.info("getUsers(RealmModel realm, int firstResult, int maxResults)");
-        return userDAO.findAll(firstResult, maxResults)
+        log.debug("getUsers(RealmModel realm, int firstResult, int maxResults)");
+        return timed(Operation.GET_USERS, () -> userDAO.findAll(firstResult, maxResults)
                 .stream()
-                .map(user -> new UserRepresentation(session, realm, model, user, userDAO))
-                .collect(Collectors.toList());
+                .map(user -> getUserRepresentation(user, realm))
+                .collect(Collectors.toList()));
     }
 
     @Override
     public List<UserModel> searchForUser(String search, RealmModel realm) {
-        log.info("searchForUser(String search, RealmModel realm)");
-        return userDAO.searchForUserByUsernameOrEmail(search)
-                .stream()
-                .map(user -> new UserRepresentation(session, realm, model, user, userDAO))
-                .collect(Collectors.toList());
+        log.debug("searchForUser(String search, RealmModel realm)");
+        return timed(Operation.SEARCH_FOR_USER, () -> {
+            try (Stream<UserModel> users = searchForUserStream(realm, search)) {
+                return users.collect(Collectors.toList());
+            }
+        });
+    }
+
+    @Override
+    public Stream<UserModel> searchForUserStream(RealmModel realm, String search) {
+        log.debug("searchForUserStream(RealmModel realm, String search)");
+        return userDAO.streamSearch(search)
+                .map(user -> getUserRepresentation(user, realm));
+    }
+
+    @Override
+    public Stream<UserModel> searchForUserStream(RealmModel realm, String search, Integer firstResult, Integer maxResults) {
+        int first = firstResult(firstResult);
+        int max = maxResults(maxResults);
+        if (first == 0 && max == Integer.MAX_VALUE) {
+            return searchForUserStream(realm, search);
+        }
+        return searchForUser(search, realm, first, max).stream();
+    }
+
+    private <T> T timed(Operation operation, Supplier<T> work) {
+        return resources.getMetrics().time(operation, work);
+    }
+
+    /**
+     * @return the offset of a stream page, 0 when unset or negative
+     */
+    private static int firstResult(Integer firstResult) {
+        return firstResult == null ? 0 : Math.max(0, firstResult);
+    }
+
+    /**
+     * @return the size of a stream page, {@link Integer#MAX_VALUE} when unbounded (unset or negative)
+     */
+    private static int maxResults(Integer maxResults) {
+        return maxResults == null || maxResults < 0 ? Integer.MAX_VALUE : maxResults;
     }
 
     @Override
     public List<UserModel> searchForUser(String search, RealmModel realm, int firstResult, int maxResults) {
-        log.info("searchForUser(String search, RealmModel realm, int firstResult, int maxResults)");
-        return userDAO.searchForUserByUsernameOrEmail(search, firstResult, maxResults)
+        log.debug("searchForUser(String search, RealmModel realm, int firstResult, int maxResults)");
+        return timed(Operation.SEARCH_FOR_USER, () -> userDAO.searchForUserByUsernameOrEmail(search, firstResult, maxResults)
                 .stream()
-                .map(user -> new UserRepresentation(session, realm, model, user, userDAO))
-                .collect(Collectors.toList());
+                .map(user -> getUserRepresentation(user, realm))
+                .collect(Collectors.toList()));
     }
 
     @Override
     public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm) {
-        log.info("searchForUser(params: {} , realm: {})" ,params, realm  );
-        // TODO Will probably never implement; Only used by REST API
-        return new ArrayList<>();
+        log.debug("searchForUser(params: {} , realm: {})" ,params, realm  );
+        return timed(Operation.SEARCH_FOR_USER, () -> userDAO.searchByParams(params, null, null)
+                .stream()
+                .map(user -> getUserRepresentation(user, realm))
+                .collect(Collectors.toList()));
     }
 
     @Override
     public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm, int firstResult,
                                          int maxResults) {
-        return userDAO.findAll(firstResult, maxResults)
+        return timed(Operation.SEARCH_FOR_USER, () -> userDAO.searchByParams(params, firstResult, maxResults)
                 .stream()
-                .map(user -> new UserRepresentation(session, realm, model, user, userDAO))
-                .collect(Collectors.toList());
+                .map(user -> getUserRepresentation(user, realm))
+                .collect(Collectors.toList()));
     }
 
     @Override
     public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group, int firstResult, int maxResults) {
-        // TODO Will probably never implement
-        return new ArrayList<>();
+        return getGroupMembers(realm, group, (Integer) firstResult, (Integer) maxResults);
     }
 
     @Override
     public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group) {
-        // TODO Will probably never implement
-        return new ArrayList<>();
+        return getGroupMembers(realm, group, null, null);
+    }
+
+    private List<UserModel> getGroupMembers(RealmModel realm, GroupModel group, Integer firstResult, Integer maxResults) {
+        if (groupMemberships == null) {
+            // members are only known to the Keycloak federated storage
+            return new ArrayList<>();
+        }
+        return timed(Operation.GET_GROUP_MEMBERS, () -> userDAO.getGroupMembers(group.getId(), firstResult, maxResults)
+                .stream()
+                .map(user -> getUserRepresentation(user, realm))
+                .collect(Collectors.toList()));
     }
 
     @Override
     public List<UserModel> searchForUserByUserAttribute(String attrName, String attrValue, RealmModel realm) {
-        // TODO Will probably never implement
-        return new ArrayList<>();
+        // attributes kept in the federated storage are searched by Keycloak itself
+        return timed(Operation.SEARCH_FOR_USER, () -> userDAO.searchByAttribute(attrName, attrValue, null, null)
+                .stream()
+                .map(user -> getUserRepresentation(user, realm))
+                .collect(Collectors.toList()));
     }
 
     @Override
     public UserModel getUserById(String keycloakId, RealmModel realm) {
         // keycloakId := keycloak internal id; needs to be mapped to external id
-        log.info("method invoked: getUserById() with keycloakId={}",keycloakId);
+        log.debug("method invoked: getUserById() with keycloakId={}",keycloakId);
         String id = StorageId.externalId(keycloakId);
-        return new UserRepresentation(session, realm, model, userDAO.getUserById(id), userDAO);
+        return timed(Operation.GET_USER_BY_ID, () -> getUserRepresentation(userDAO.getUserById(id), realm));
     }
 
     @Override
     public UserModel getUserByUsername(String username, RealmModel realm) {
-        log.info("getUserByUsername(String username, RealmModel realm)");
-        Optional<User> optionalUser = userDAO.getUserByEmail(username);
-        return optionalUser.map(user -> getUserRepresentation(user, realm)).orElse(null);
+        log.debug("getUserByUsername(String username, RealmModel realm)");
+        return timed(Operation.GET_USER_BY_USERNAME, () -> userDAO.getUserByEmail(username)
+                .map(user -> getUserRepresentation(user, realm)).orElse(null));
     }
 
     @Override
     public UserModel getUserByEmail(String email, RealmModel realm) {
-        log.info("getUserByEmail(String email, RealmModel realm)");
-        Optional<User> optionalUser = userDAO.getUserByEmail(email);
-        return optionalUser.map(user -> getUserRepresentation(user, realm)).orElse(null);
+        log.debug("getUserByEmail(String email, RealmModel realm)");
+        return timed(Operation.GET_USER_BY_EMAIL, () -> userDAO.getUserByEmail(email)
+                .map(user -> getUserRepresentation(user, realm)).orElse(null));
     }
 
     @Override
@@ -243,21 +434,18 @@ public class CustomUserStorageProvider implements UserStorageProvider,
 
     @Override
     public boolean removeUser(RealmModel realm, UserModel user) {
-        log.info("removeUser(" + realm + ", " + user + ")");
+        log.debug("removeUser({}, {})", realm, user);
         throw new ReadOnlyException("user is read only");
         /*User userEntity = userDAO.getUserById(StorageId.externalId(user.getId()));
         if (userEntity == null) {
-            log.info("Tried to delete invalid user with ID " + user.getId());
+            log.info("Tried to delete invalid user with ID {}", user.getId());
             return false;
         }
         userDAO.deleteUser(userEntity);*/
     }
 
     public String getPassword(UserModel user) {
-        String password = null;
-        if (user instanceof UserRepresentation) {
-            password = ((UserRepresentation) user).getPassword();
-        }
-        return password;
+        UserRepresentation userRepresentation = getUserRepresentation(user);
+        return userRepresentation == null ? null : userRepresentation.getPassword();
     }
 }
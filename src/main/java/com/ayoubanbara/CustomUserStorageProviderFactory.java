@@ -1,41 +1,66 @@
 package com.ayoubanbara;
 
+import com.ayoubanbara.beans.ConfigurablePasswordEncoder;
+import com.ayoubanbara.cache.UserCountProvider;
 import com.ayoubanbara.dao.UserDAO;
+import com.ayoubanbara.datasource.EntityManagerFactoryRegistry;
+import com.ayoubanbara.datasource.PoolMetricsTracker;
+import com.ayoubanbara.datasource.PooledDataSourceFactory;
+import com.ayoubanbara.datasource.ReplicaRouter;
+import com.ayoubanbara.datasource.SecondLevelCache;
+import com.ayoubanbara.metrics.ComponentStatistics;
+import com.ayoubanbara.metrics.TracingStatementInspector;
+import com.ayoubanbara.model.GroupMembership;
 import com.ayoubanbara.model.User;
+import com.ayoubanbara.search.SearchMode;
+import com.ayoubanbara.sync.UserImporter;
+import com.ayoubanbara.utils.Helpers;
+import com.zaxxer.hikari.HikariDataSource;
 import jakarta.persistence.EntityManagerFactory;
 import jakarta.persistence.SharedCacheMode;
 import jakarta.persistence.ValidationMode;
 import jakarta.persistence.spi.ClassTransformer;
 import jakarta.persistence.spi.PersistenceUnitInfo;
 import jakarta.persistence.spi.PersistenceUnitTransactionType;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.jpa.HibernatePersistenceProvider;
+import org.hibernate.stat.CacheRegionStatistics;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
+import javax.cache.CacheManager;
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static com.ayoubanbara.utils.Helpers.getInt;
 import static com.ayoubanbara.utils.Helpers.isBlank;
 import static com.ayoubanbara.utils.Helpers.isNumeric;
 
-public class CustomUserStorageProviderFactory implements UserStorageProviderFactory<CustomUserStorageProvider> {
+public class CustomUserStorageProviderFactory implements UserStorageProviderFactory<CustomUserStorageProvider>, ImportSynchronization {
     public static final int PORT_LIMIT = 65535;
-    Map<String,String> properties;
-    Map<String, EntityManagerFactory> entityManagerFactories = new HashMap<>();
+    final EntityManagerFactoryRegistry entityManagerFactories = new EntityManagerFactoryRegistry();
+    final Map<String, ComponentResources> componentResources = new ConcurrentHashMap<>();
 
     protected static final List<ProviderConfigProperty> configMetadata;
 
@@ -46,6 +71,54 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
     public static final String DB_PASSWORD_KEY = "db:password";
     public static final String DB_PORT_KEY = "db:port";
     public static final String DB_CONNECTION_OTHER_PARAMS = "db:params";
+    public static final String DB_JDBC_URL_KEY = "db:jdbcUrl";
+    public static final String REPLICA_ENDPOINTS_KEY = "replica:endpoints";
+    public static final String REPLICA_BALANCING_KEY = "replica:balancing";
+    public static final String REPLICA_HEALTH_CHECK_SECONDS_KEY = "replica:healthCheckSeconds";
+    public static final String POOL_MIN_IDLE_KEY = "pool:minIdle";
+    public static final String POOL_MAX_SIZE_KEY = "pool:maxSize";
+    public static final String POOL_CONNECTION_TIMEOUT_KEY = "pool:connectionTimeout";
+    public static final String POOL_IDLE_TIMEOUT_KEY = "pool:idleTimeout";
+    public static final String POOL_MAX_LIFETIME_KEY = "pool:maxLifetime";
+    public static final String POOL_VALIDATION_QUERY_KEY = "pool:validationQuery";
+    public static final String POOL_PREP_STMT_CACHE_SIZE_KEY = "pool:prepStmtCacheSize";
+    public static final String CACHE_MAX_SIZE_KEY = "cache:maxSize";
+    public static final String CACHE_TTL_SECONDS_KEY = "cache:ttlSeconds";
+    public static final String FILTER_ENABLED_KEY = "filter:enabled";
+    public static final String FILTER_EXPECTED_ENTRIES_KEY = "filter:expectedEntries";
+    public static final String FILTER_FALSE_POSITIVE_RATE_KEY = "filter:falsePositiveRate";
+    public static final String FILTER_REFRESH_SECONDS_KEY = "filter:refreshSeconds";
+    public static final String FILTER_REBUILD_SECONDS_KEY = "filter:rebuildSeconds";
+    public static final String VERIFY_THREADS_KEY = "verify:threads";
+    public static final String VERIFY_QUEUE_SIZE_KEY = "verify:queueSize";
+    public static final String VERIFY_MAX_WAIT_MILLIS_KEY = "verify:maxWaitMillis";
+    public static final String PASSWORD_ALGORITHM_KEY = "password:algorithm";
+    public static final String PASSWORD_COST_KEY = "password:cost";
+    public static final String PASSWORD_TARGET_MILLIS_KEY = "password:targetMillis";
+    public static final String PASSWORD_REHASH_ON_LOGIN_KEY = "password:rehashOnLogin";
+    public static final String CREDENTIAL_CACHE_TTL_SECONDS_KEY = "credentialCache:ttlSeconds";
+    public static final String CREDENTIAL_CACHE_MAX_SIZE_KEY = "credentialCache:maxSize";
+    public static final String PAGING_KEYSET_KEY = "paging:keyset";
+    public static final String PAGING_CURSOR_CACHE_SIZE_KEY = "paging:cursorCacheSize";
+    public static final String SEARCH_MODE_KEY = "search:mode";
+    public static final String STREAM_FETCH_SIZE_KEY = "stream:fetchSize";
+    public static final String GROUPS_NATIVE_KEY = "groups:native";
+    public static final String SYNC_CHUNK_SIZE_KEY = "sync:chunkSize";
+    public static final String CHANGES_POLL_SECONDS_KEY = "changes:pollSeconds";
+    public static final String CHANGES_MAX_PER_POLL_KEY = "changes:maxPerPoll";
+    public static final String CHANGES_LOOKBACK_SECONDS_KEY = "changes:lookbackSeconds";
+    public static final String L2_CACHE_ENABLED_KEY = "l2cache:enabled";
+    public static final String L2_CACHE_MAX_ENTRIES_KEY = "l2cache:maxEntries";
+    public static final String L2_CACHE_TTL_SECONDS_KEY = "l2cache:ttlSeconds";
+    public static final String TRACE_THRESHOLD_MILLIS_KEY = "trace:thresholdMillis";
+    public static final String TRACE_BUFFER_SIZE_KEY = "trace:bufferSize";
+    public static final String COUNT_MODE_KEY = "count:mode";
+    public static final String COUNT_REFRESH_SECONDS_KEY = "count:refreshSeconds";
+    public static final String COUNT_MAX_STALENESS_SECONDS_KEY = "count:maxStalenessSeconds";
+    public static final String SEARCH_NGRAM_INDEX_KEY = "search:ngramIndex";
+    public static final String SEARCH_NGRAM_MAX_CANDIDATES_KEY = "search:ngramMaxCandidates";
+    public static final String SEARCH_NGRAM_REFRESH_SECONDS_KEY = "search:ngramRefreshSeconds";
+    public static final String SEARCH_NGRAM_REBUILD_SECONDS_KEY = "search:ngramRebuildSeconds";
 
     static {
         configMetadata = ProviderConfigurationBuilder.create()
@@ -73,6 +146,13 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
                 .helpText("like: key1=value1&key2=value2&keyN=valueN")
                 .add()
 
+                // JDBC URL
+                .property().name(DB_JDBC_URL_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("JDBC URL")
+                .helpText("Full JDBC URL used instead of the host, port, database and params, e.g. for an embedded database in tests. The driver must be on the classpath")
+                .add()
+
                 // Connection Database
                 .property().name(DB_DATABASE_KEY)
                 .type(ProviderConfigProperty.STRING_TYPE)
@@ -100,6 +180,381 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
                 .label("Database Port")
                 .defaultValue("3308")
                 .add()
+
+                // Replica Endpoints
+                .property().name(REPLICA_ENDPOINTS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Read Replicas")
+                .helpText("Comma separated read replicas serving the lookups and searches: host or host:port on the same database, credentials and pool settings as the primary, or a JDBC URL. Writes, and the reads following them in the same session, go to the primary")
+                .add()
+
+                // Replica Balancing
+                .property().name(REPLICA_BALANCING_KEY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Replica Balancing")
+                .options("round_robin", "least_latency")
+                .defaultValue("round_robin")
+                .helpText("round_robin: healthy replicas in turn. least_latency: the healthy replica with the lowest recent latency")
+                .add()
+
+                // Replica Health Check
+                .property().name(REPLICA_HEALTH_CHECK_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Replica Health Check (s)")
+                .defaultValue("5")
+                .helpText("Interval of the replica health checks. A replica failing its check is skipped, reads go to the primary when none is healthy")
+                .add()
+
+                // Pool Minimum Idle
+                .property().name(POOL_MIN_IDLE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pool Minimum Idle")
+                .defaultValue("2")
+                .helpText("Minimum number of idle connections kept in the pool")
+                .add()
+
+                // Pool Maximum Size
+                .property().name(POOL_MAX_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pool Maximum Size")
+                .defaultValue("10")
+                .helpText("Maximum number of connections in the pool, idle and in use")
+                .add()
+
+                // Pool Connection Timeout
+                .property().name(POOL_CONNECTION_TIMEOUT_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pool Connection Timeout (ms)")
+                .defaultValue("30000")
+                .helpText("Maximum time a caller waits for a connection from the pool")
+                .add()
+
+                // Pool Idle Timeout
+                .property().name(POOL_IDLE_TIMEOUT_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pool Idle Timeout (ms)")
+                .defaultValue("600000")
+                .helpText("Maximum time a connection may sit idle in the pool")
+                .add()
+
+                // Pool Max Lifetime
+                .property().name(POOL_MAX_LIFETIME_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pool Max Lifetime (ms)")
+                .defaultValue("1800000")
+                .helpText("Maximum lifetime of a connection in the pool, keep it below the database wait_timeout")
+                .add()
+
+                // Pool Validation Query
+                .property().name(POOL_VALIDATION_QUERY_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pool Validation Query")
+                .helpText("Query used to validate connections, leave empty to use the JDBC4 isValid() check")
+                .add()
+
+                // Prepared Statement Cache
+                .property().name(POOL_PREP_STMT_CACHE_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Prepared Statement Cache Size")
+                .defaultValue("250")
+                .helpText("Number of prepared statements cached per connection, 0 disables the cache")
+                .add()
+
+                // User Cache Size
+                .property().name(CACHE_MAX_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("User Cache Size")
+                .defaultValue("0")
+                .helpText("Maximum number of users kept in the provider lookup cache (least recently used are evicted), 0 disables the cache")
+                .add()
+
+                // User Cache TTL
+                .property().name(CACHE_TTL_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("User Cache TTL (s)")
+                .defaultValue("60")
+                .helpText("Time a user stays in the provider lookup cache")
+                .add()
+
+                // Unknown Email Filter
+                .property().name(FILTER_ENABLED_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Unknown Email Filter")
+                .defaultValue("false")
+                .helpText("Answer lookups of emails that are definitely not in the table without querying the database")
+                .add()
+
+                // Unknown Email Filter Expected Entries
+                .property().name(FILTER_EXPECTED_ENTRIES_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Unknown Email Filter Expected Entries")
+                .defaultValue("1000000")
+                .helpText("Number of users the filter is sized for, it is rebuilt larger once exceeded")
+                .add()
+
+                // Unknown Email Filter False Positive Rate
+                .property().name(FILTER_FALSE_POSITIVE_RATE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Unknown Email Filter False Positive Rate")
+                .defaultValue("0.01")
+                .helpText("Share of unknown emails still sent to the database, lower values use more memory")
+                .add()
+
+                // Unknown Email Filter Refresh
+                .property().name(FILTER_REFRESH_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Unknown Email Filter Refresh (s)")
+                .defaultValue("30")
+                .helpText("Interval at which newly inserted users are added to the filter, they cannot log in before")
+                .add()
+
+                // Unknown Email Filter Rebuild
+                .property().name(FILTER_REBUILD_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Unknown Email Filter Rebuild (s)")
+                .defaultValue("3600")
+                .helpText("Interval of the full rebuilds of the filter, catching the changes older than the change lookback")
+                .add()
+
+                // Password Verification Threads
+                .property().name(VERIFY_THREADS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Password Verification Threads")
+                .helpText("Threads dedicated to password hash verification, defaults to the number of cores, 0 verifies on the request thread")
+                .add()
+
+                // Password Verification Queue
+                .property().name(VERIFY_QUEUE_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Password Verification Queue Size")
+                .defaultValue("100")
+                .helpText("Verifications waiting for a thread, further logins are rejected right away. 0 only hands verifications to an idle thread")
+                .add()
+
+                // Password Verification Max Wait
+                .property().name(VERIFY_MAX_WAIT_MILLIS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Password Verification Max Wait (ms)")
+                .defaultValue("2000")
+                .helpText("Maximum time a login waits for its password verification")
+                .add()
+
+                // Password Algorithm
+                .property().name(PASSWORD_ALGORITHM_KEY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Password Algorithm")
+                .options(ConfigurablePasswordEncoder.ALGORITHMS)
+                .defaultValue(ConfigurablePasswordEncoder.BCRYPT)
+                .helpText("Algorithm used to encode new passwords, hashes of the other algorithms are still accepted")
+                .add()
+
+                // Password Cost
+                .property().name(PASSWORD_COST_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Password Cost")
+                .helpText("bcrypt strength, pbkdf2 or argon2 iterations. Empty to calibrate from the target time, or to use the algorithm default. Existing hashes keep their cost until they are re-encoded on login")
+                .add()
+
+                // Password Target Time
+                .property().name(PASSWORD_TARGET_MILLIS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Password Target Verification Time (ms)")
+                .helpText("When no cost is set, the cost is calibrated in the background to stay within this verification time on the current hardware")
+                .add()
+
+                // Password Rehash On Login
+                .property().name(PASSWORD_REHASH_ON_LOGIN_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Rehash Password On Login")
+                .defaultValue("true")
+                .helpText("Re-encode a password hashed with another algorithm or a lower cost after a successful login")
+                .add()
+
+                // Verified Credential Cache TTL
+                .property().name(CREDENTIAL_CACHE_TTL_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Verified Credential Cache TTL (s)")
+                .defaultValue("0")
+                .helpText("Time a successful password verification is remembered, so repeated logins with the same password skip the hash verification. Only a keyed HMAC of the password is kept. 0 disables the cache")
+                .add()
+
+                // Verified Credential Cache Size
+                .property().name(CREDENTIAL_CACHE_MAX_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Verified Credential Cache Size")
+                .defaultValue("10000")
+                .helpText("Maximum number of users with a remembered verification")
+                .add()
+
+                // Keyset Pagination
+                .property().name(PAGING_KEYSET_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Keyset Pagination")
+                .defaultValue("true")
+                .helpText("Fetch the next page of a listing or search from the last row of the previous one instead of skipping rows with an offset")
+                .add()
+
+                // Keyset Cursor Cache Size
+                .property().name(PAGING_CURSOR_CACHE_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Keyset Cursor Cache Size")
+                .defaultValue("1000")
+                .helpText("Number of page positions remembered across listings and searches")
+                .add()
+
+                // Search Mode
+                .property().name(SEARCH_MODE_KEY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Search Mode")
+                .options("auto", "prefix", "substring", "fulltext", "ngram")
+                .defaultValue("auto")
+                .helpText("auto: 'term*' is an indexed prefix search, other terms a substring search (n-gram index when enabled). prefix: every term is a prefix. substring: lower(email) like '%term%'. fulltext: MySQL full-text search, needs a FULLTEXT index on business_users.email. ngram: in-memory n-gram index")
+                .add()
+
+                // N-gram Index
+                .property().name(SEARCH_NGRAM_INDEX_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Email N-gram Index")
+                .defaultValue("false")
+                .helpText("Keep an in-memory trigram index of the emails to answer substring searches without scanning the table")
+                .add()
+
+                // N-gram Index Max Candidates
+                .property().name(SEARCH_NGRAM_MAX_CANDIDATES_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Email N-gram Index Max Candidates")
+                .defaultValue("20000")
+                .helpText("Searches matching more candidates than this are left to the database")
+                .add()
+
+                // N-gram Index Refresh
+                .property().name(SEARCH_NGRAM_REFRESH_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Email N-gram Index Refresh (s)")
+                .defaultValue("30")
+                .helpText("Interval at which newly inserted users are added to the index")
+                .add()
+
+                // N-gram Index Rebuild
+                .property().name(SEARCH_NGRAM_REBUILD_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Email N-gram Index Rebuild (s)")
+                .defaultValue("3600")
+                .helpText("Interval of the full rebuilds of the index, catching the changes older than the change lookback")
+                .add()
+
+                // Stream Fetch Size
+                .property().name(STREAM_FETCH_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Stream Fetch Size")
+                .defaultValue("500")
+                .helpText("Rows fetched per round trip when streaming user listings, read through a server side cursor. 0 lets the driver read the whole result")
+                .add()
+
+                // Native Group Membership
+                .property().name(GROUPS_NATIVE_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Native Group Membership")
+                .defaultValue("false")
+                .helpText("Read group members from the business_user_groups table (group_id, user_id) in addition to the Keycloak federated storage")
+                .add()
+
+                // Sync Chunk Size
+                .property().name(SYNC_CHUNK_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Sync Chunk Size")
+                .defaultValue("500")
+                .helpText("Users imported per transaction by the full and changed users synchronizations, when import is enabled")
+                .add()
+
+                // Change Poll Interval
+                .property().name(CHANGES_POLL_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Change Poll Interval (s)")
+                .defaultValue("0")
+                .helpText("Interval of the polling of business_users.updated_at, evicting the users changed by other systems from the Keycloak user cache of all nodes. 0 disables it")
+                .add()
+
+                // Changes Per Poll
+                .property().name(CHANGES_MAX_PER_POLL_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Changes Per Poll")
+                .defaultValue("1000")
+                .helpText("Maximum number of changed users evicted by one poll, the rest is evicted by the next ones")
+                .add()
+
+                // Change Lookback
+                .property().name(CHANGES_LOOKBACK_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Change Lookback (s)")
+                .defaultValue("60")
+                .helpText("Margin of business_users.updated_at re-read by the change polling and the incremental refreshes of the unknown email filter and the n-gram index, as updated_at is set when a statement runs, not when it commits. At least the longest transaction writing users plus the replica lag")
+                .add()
+
+                // Second Level Cache
+                .property().name(L2_CACHE_ENABLED_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Second Level Cache")
+                .defaultValue("false")
+                .helpText("Cache users and the email and count queries in the Hibernate second level cache of the connection")
+                .add()
+
+                // Second Level Cache Size
+                .property().name(L2_CACHE_MAX_ENTRIES_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Second Level Cache Size")
+                .defaultValue("10000")
+                .helpText("Maximum number of users, and of cached query results, kept by the second level cache")
+                .add()
+
+                // Second Level Cache TTL
+                .property().name(L2_CACHE_TTL_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Second Level Cache TTL (s)")
+                .defaultValue("300")
+                .helpText("Lifespan of the second level cache entries, bounding how long changes made by other systems go unseen")
+                .add()
+
+                // Slow Trace Threshold
+                .property().name(TRACE_THRESHOLD_MILLIS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Slow Trace Threshold (ms)")
+                .defaultValue("500")
+                .helpText("Sessions spending more than this in the provider are logged with their span breakdown, SQL and bind parameters. 0 disables tracing")
+                .add()
+
+                // Slow Trace Buffer
+                .property().name(TRACE_BUFFER_SIZE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Slow Trace Buffer")
+                .defaultValue("100")
+                .helpText("Number of the last slow traces kept for the JMX statistics of the component")
+                .add()
+
+                // User Count Mode
+                .property().name(COUNT_MODE_KEY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("User Count Mode")
+                .options("exact", "cached", "approximate")
+                .defaultValue("exact")
+                .helpText("exact: count(*) on every call. cached: exact count refreshed in the background. approximate: InnoDB table statistics")
+                .add()
+
+                // User Count Refresh
+                .property().name(COUNT_REFRESH_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("User Count Refresh (s)")
+                .defaultValue("60")
+                .helpText("Interval of the background refresh of the cached count")
+                .add()
+
+                // User Count Max Staleness
+                .property().name(COUNT_MAX_STALENESS_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("User Count Max Staleness (s)")
+                .defaultValue("300")
+                .helpText("A cached count older than this is recomputed before answering")
+                .add()
                 .build();
     }
 
@@ -112,34 +567,178 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
 
     @Override
     public CustomUserStorageProvider create(KeycloakSession session, ComponentModel model) {
-        properties = new HashMap<>();
-        String dbConnectionName = model.getConfig().getFirst("db:connectionName");
-        EntityManagerFactory entityManagerFactory = entityManagerFactories.get(dbConnectionName);
-        if (entityManagerFactory == null) {
-            MultivaluedHashMap<String, String> config = model.getConfig();
-            properties.put("hibernate.connection.driver_class", "com.mysql.cj.jdbc.Driver");
-            properties.put("hibernate.connection.url",
-                    String.format("jdbc:mysql://%s:%s/%s?%s",
-                            config.getFirst(DB_HOST_KEY),
-                            config.getFirst(DB_PORT_KEY),
-                            config.getFirst(DB_DATABASE_KEY),
-                            config.getFirst(DB_CONNECTION_OTHER_PARAMS)
-                    )
-            );
-            properties.put("hibernate.connection.username", config.getFirst(DB_USERNAME_KEY));
-            properties.put("hibernate.connection.password", config.getFirst(DB_PASSWORD_KEY));
-            properties.put("hibernate.show-sql", "true");
-            properties.put("hibernate.archive.autodetection", "class, hbm");
-            properties.put("hibernate.hbm2ddl.auto", "update");
-            properties.put("hibernate.connection.autocommit", "true");
-
-            entityManagerFactory = new HibernatePersistenceProvider().createContainerEntityManagerFactory(getPersistenceUnitInfo("h2userstorage"), properties);
-            entityManagerFactories.put(dbConnectionName, entityManagerFactory);
+        ComponentResources resources = resources(session, model);
+        EntityManagerFactoryRegistry.Connection connection = acquireConnection(model);
+        UserDAO userDAO;
+        try {
+            userDAO = new UserDAO(connection.getEntityManagerFactory().createEntityManager(), resources);
+        } catch (RuntimeException e) {
+            connection.release();
+            throw e;
+        }
+        // the lease is returned with the session's entity manager
+        userDAO.onClose(connection::release);
+        try {
+            userDAO.enlistIn(session.getTransactionManager());
+            userDAO.readFrom(connection.getReplicaRouter());
+            return new CustomUserStorageProvider(session, model, userDAO, resources);
+        } catch (RuntimeException e) {
+            userDAO.close();
+            throw e;
+        }
+    }
+
+    private ComponentResources resources(KeycloakSession session, ComponentModel model) {
+        return componentResources.computeIfAbsent(model.getId(), id -> {
+            String connectionName = model.getConfig().getFirst(DB_CONNECTION_NAME_KEY);
+            // background tasks only lease a started connection, they never build one back after preRemove
+            ComponentResources created = new ComponentResources(model, () -> entityManagerFactories.lease(connectionName),
+                    session.getKeycloakSessionFactory());
+            created.publish(new ComponentStatistics(model.getName(), created,
+                    () -> getPoolMetrics(connectionName), () -> getCacheStatistics(connectionName),
+                    () -> getReplicaRouter(connectionName)));
+            return created;
+        });
+    }
+
+    private EntityManagerFactoryRegistry.Connection acquireConnection(ComponentModel model) {
+        return entityManagerFactories.acquire(model.getConfig().getFirst(DB_CONNECTION_NAME_KEY), model.getId(),
+                name -> buildConnection(name, model.getConfig()));
+    }
+
+    private EntityManagerFactoryRegistry.Connection buildConnection(String dbConnectionName, MultivaluedHashMap<String, String> config) {
+        HikariDataSource dataSource = PooledDataSourceFactory.create(poolName(dbConnectionName), config);
+        CacheManager cacheManager = null;
+        EntityManagerFactory entityManagerFactory = null;
+        try {
+            Map<String, Object> properties = new HashMap<>();
+            cacheManager = SecondLevelCache.configure(dbConnectionName, config, properties);
+            entityManagerFactory = createEntityManagerFactory(dataSource, properties);
+            return new EntityManagerFactoryRegistry.Connection(dbConnectionName, entityManagerFactory, dataSource, cacheManager,
+                    buildReplicaRouter(dbConnectionName, config, entityManagerFactory));
+        } catch (RuntimeException e) {
+            if (entityManagerFactory != null) {
+                entityManagerFactory.close();
+            }
+            if (cacheManager != null) {
+                cacheManager.close();
+            }
+            dataSource.close();
+            throw e;
         }
-        UserDAO userDAO = new UserDAO(entityManagerFactory.createEntityManager());
-        return new CustomUserStorageProvider(session, model, userDAO);
     }
 
+    /**
+     * @return the read replicas of the connection, or null when none is configured
+     */
+    private static ReplicaRouter buildReplicaRouter(String dbConnectionName, MultivaluedHashMap<String, String> config,
+                                                    EntityManagerFactory primary) {
+        String endpoints = config.getFirst(REPLICA_ENDPOINTS_KEY);
+        if (isBlank(endpoints)) {
+            return null;
+        }
+        List<ReplicaRouter.Replica> replicas = new ArrayList<>();
+        try {
+            for (String endpoint : endpoints.split(",")) {
+                if (isBlank(endpoint)) {
+                    continue;
+                }
+                String poolName = poolName(dbConnectionName) + "-replica-" + (replicas.size() + 1);
+                HikariDataSource dataSource = PooledDataSourceFactory.createReplica(poolName, config, endpoint.trim());
+                try {
+                    Map<String, Object> properties = new HashMap<>();
+                    // the schema is managed on the primary, and entities are only cached from it
+                    properties.put("hibernate.hbm2ddl.auto", "none");
+                    SecondLevelCache.disable(properties);
+                    // boots without reaching a replica that is down
+                    properties.put("hibernate.dialect", primary.unwrap(SessionFactoryImplementor.class).getJdbcServices().getDialect());
+                    properties.put("hibernate.temp.use_jdbc_metadata_defaults", "false");
+                    replicas.add(new ReplicaRouter.Replica(poolName, dataSource, createEntityManagerFactory(dataSource, properties)));
+                } catch (RuntimeException e) {
+                    dataSource.close();
+                    throw e;
+                }
+            }
+        } catch (RuntimeException e) {
+            replicas.forEach(ReplicaRouter.Replica::close);
+            throw e;
+        }
+        return replicas.isEmpty() ? null : new ReplicaRouter(dbConnectionName, replicas,
+                ReplicaRouter.Balancing.of(config.getFirst(REPLICA_BALANCING_KEY)),
+                Math.max(1, getInt(config, REPLICA_HEALTH_CHECK_SECONDS_KEY, 5)));
+    }
+
+    /**
+     * Builds the persistence unit of {@link User} on the given data source, also used by the standalone tools.
+     */
+    public static EntityManagerFactory createEntityManagerFactory(DataSource dataSource) {
+        Map<String, Object> properties = new HashMap<>();
+        SecondLevelCache.disable(properties);
+        return createEntityManagerFactory(dataSource, properties);
+    }
+
+    private static EntityManagerFactory createEntityManagerFactory(DataSource dataSource, Map<String, Object> properties) {
+        // statements are only reported as part of slow traces, see Tracer
+        properties.put("hibernate.session_factory.statement_inspector", new TracingStatementInspector());
+        properties.put("hibernate.archive.autodetection", "class, hbm");
+        properties.putIfAbsent("hibernate.hbm2ddl.auto", "update");
+        properties.put("hibernate.connection.autocommit", "true");
+        return new HibernatePersistenceProvider()
+                .createContainerEntityManagerFactory(getPersistenceUnitInfo("h2userstorage", dataSource), properties);
+    }
+
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        return importUsers(sessionFactory, realmId, model, null);
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        return importUsers(sessionFactory, realmId, model, lastSync);
+    }
+
+    private SynchronizationResult importUsers(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model, Date since) {
+        if (!model.isImportEnabled()) {
+            return SynchronizationResult.ignored();
+        }
+        EntityManagerFactoryRegistry.Connection connection = acquireConnection(model);
+        UserDAO userDAO = new UserDAO(connection.getEntityManagerFactory().createEntityManager());
+        userDAO.onClose(connection::release);
+        try {
+            return new UserImporter(sessionFactory, realmId, model, userDAO,
+                    Math.max(1, getInt(model.getConfig(), SYNC_CHUNK_SIZE_KEY, 500))).run(since);
+        } finally {
+            userDAO.close();
+        }
+    }
+
+    /**
+     * Second level cache statistics of the given connection, empty if the cache is disabled or the connection not started.
+     */
+    public Map<String, CacheRegionStatistics> getCacheStatistics(String connectionName) {
+        EntityManagerFactoryRegistry.Connection connection = entityManagerFactories.get(connectionName);
+        return connection == null ? Map.of() : SecondLevelCache.statistics(connection.getEntityManagerFactory());
+    }
+
+    /**
+     * Pool statistics (active, idle, waiting, acquire latency) of the given connection, or null if the pool is not started.
+     */
+    public PoolMetricsTracker getPoolMetrics(String connectionName) {
+        EntityManagerFactoryRegistry.Connection connection = entityManagerFactories.get(connectionName);
+        return connection == null ? null : connection.getPoolMetrics();
+    }
+
+    /**
+     * Read replicas of the given connection, or null if it has none or is not started.
+     */
+    public ReplicaRouter getReplicaRouter(String connectionName) {
+        EntityManagerFactoryRegistry.Connection connection = entityManagerFactories.get(connectionName);
+        return connection == null ? null : connection.getReplicaRouter();
+    }
+
+    static String poolName(String connectionName) {
+        return "user-provider-" + connectionName.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
 
     @Override
     public String getId() {
@@ -149,24 +748,56 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
     @Override
     public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
         String oldCnName = oldModel.getConfig().getFirst(DB_CONNECTION_NAME_KEY);
-        entityManagerFactories.remove(oldCnName);
+        String newCnName = newModel.getConfig().getFirst(DB_CONNECTION_NAME_KEY);
+        // the saved connection properties are overridden, so the pool is rebuilt on next use; the old one
+        // is closed once the sessions and tasks still using it are done
+        entityManagerFactories.evict(oldCnName);
+        entityManagerFactories.evict(newCnName);
+        closeComponentResources(oldModel.getId());
         onCreate(session, realm, newModel);
     }
 
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        // stops the background tasks first, so none leases the connection once it is released
+        closeComponentResources(model.getId());
+        entityManagerFactories.release(model.getConfig().getFirst(DB_CONNECTION_NAME_KEY), model.getId());
+    }
+
+    @Override
+    public void close() {
+        componentResources.keySet().forEach(this::closeComponentResources);
+        entityManagerFactories.closeAll();
+    }
+
+    private void closeComponentResources(String componentId) {
+        ComponentResources resources = componentResources.remove(componentId);
+        if (resources != null) {
+            resources.close();
+        }
+    }
+
     @Override
     public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config) throws ComponentValidationException {
         MultivaluedHashMap<String, String> configMap = config.getConfig();
         if (isBlank(configMap.getFirst(DB_CONNECTION_NAME_KEY))) {
             throw new ComponentValidationException("Connection name empty.");
         }
-        if (isBlank(configMap.getFirst(DB_HOST_KEY))) {
-            throw new ComponentValidationException("Database host empty.");
-        }
-        if (!isNumeric(configMap.getFirst(DB_PORT_KEY)) || Long.parseLong(configMap.getFirst(DB_PORT_KEY)) > PORT_LIMIT) {
-            throw new ComponentValidationException("Invalid port. (Empty or NaN)");
-        }
-        if (isBlank(configMap.getFirst(DB_DATABASE_KEY))) {
-            throw new ComponentValidationException("Database name empty.");
+        String jdbcUrl = configMap.getFirst(DB_JDBC_URL_KEY);
+        if (!isBlank(jdbcUrl)) {
+            if (!jdbcUrl.startsWith("jdbc:")) {
+                throw new ComponentValidationException("Invalid JDBC URL.");
+            }
+        } else {
+            if (isBlank(configMap.getFirst(DB_HOST_KEY))) {
+                throw new ComponentValidationException("Database host empty.");
+            }
+            if (!isInt(configMap.getFirst(DB_PORT_KEY), 0, PORT_LIMIT)) {
+                throw new ComponentValidationException("Invalid port. (Empty or NaN)");
+            }
+            if (isBlank(configMap.getFirst(DB_DATABASE_KEY))) {
+                throw new ComponentValidationException("Database name empty.");
+            }
         }
         if (isBlank(configMap.getFirst(DB_USERNAME_KEY))) {
             throw new ComponentValidationException("Database username empty.");
@@ -174,9 +805,88 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
         if (isBlank(configMap.getFirst(DB_PASSWORD_KEY))) {
             throw new ComponentValidationException("Database password empty.");
         }
+        for (String key : List.of(POOL_MIN_IDLE_KEY, POOL_MAX_SIZE_KEY, POOL_CONNECTION_TIMEOUT_KEY,
+                POOL_IDLE_TIMEOUT_KEY, POOL_MAX_LIFETIME_KEY, POOL_PREP_STMT_CACHE_SIZE_KEY,
+                CACHE_MAX_SIZE_KEY, CACHE_TTL_SECONDS_KEY, FILTER_EXPECTED_ENTRIES_KEY, FILTER_REFRESH_SECONDS_KEY,
+                FILTER_REBUILD_SECONDS_KEY, CHANGES_LOOKBACK_SECONDS_KEY,
+                VERIFY_THREADS_KEY, VERIFY_QUEUE_SIZE_KEY, VERIFY_MAX_WAIT_MILLIS_KEY,
+                PASSWORD_COST_KEY, PASSWORD_TARGET_MILLIS_KEY,
+                CREDENTIAL_CACHE_TTL_SECONDS_KEY, CREDENTIAL_CACHE_MAX_SIZE_KEY, PAGING_CURSOR_CACHE_SIZE_KEY,
+                SEARCH_NGRAM_MAX_CANDIDATES_KEY, SEARCH_NGRAM_REFRESH_SECONDS_KEY, SEARCH_NGRAM_REBUILD_SECONDS_KEY, STREAM_FETCH_SIZE_KEY,
+                COUNT_REFRESH_SECONDS_KEY, COUNT_MAX_STALENESS_SECONDS_KEY, SYNC_CHUNK_SIZE_KEY,
+                CHANGES_POLL_SECONDS_KEY, CHANGES_MAX_PER_POLL_KEY, L2_CACHE_MAX_ENTRIES_KEY, L2_CACHE_TTL_SECONDS_KEY,
+                TRACE_THRESHOLD_MILLIS_KEY, TRACE_BUFFER_SIZE_KEY, REPLICA_HEALTH_CHECK_SECONDS_KEY)) {
+            String value = configMap.getFirst(key);
+            if (!isBlank(value) && !isInt(value, 0, Integer.MAX_VALUE)) {
+                throw new ComponentValidationException("Invalid setting " + key + ". (NaN or out of range)");
+            }
+        }
+        try {
+            SearchMode.of(configMap.getFirst(SEARCH_MODE_KEY));
+        } catch (IllegalArgumentException e) {
+            throw new ComponentValidationException("Unsupported search mode.");
+        }
+        try {
+            ReplicaRouter.Balancing.of(configMap.getFirst(REPLICA_BALANCING_KEY));
+        } catch (IllegalArgumentException e) {
+            throw new ComponentValidationException("Unsupported replica balancing.");
+        }
+        String replicaEndpoints = configMap.getFirst(REPLICA_ENDPOINTS_KEY);
+        if (!isBlank(replicaEndpoints)) {
+            for (String endpoint : replicaEndpoints.split(",")) {
+                endpoint = endpoint.trim();
+                int separator = endpoint.lastIndexOf(':');
+                if (!endpoint.isEmpty() && !endpoint.startsWith("jdbc:") && separator >= 0
+                        && !isInt(endpoint.substring(separator + 1), 0, PORT_LIMIT)) {
+                    throw new ComponentValidationException("Invalid replica " + endpoint + ". (host, host:port or JDBC URL)");
+                }
+            }
+        }
+        try {
+            UserCountProvider.Mode.of(configMap.getFirst(COUNT_MODE_KEY));
+        } catch (IllegalArgumentException e) {
+            throw new ComponentValidationException("Unsupported user count mode.");
+        }
+        String algorithm = configMap.getFirst(PASSWORD_ALGORITHM_KEY);
+        if (!isBlank(algorithm) && !ConfigurablePasswordEncoder.ALGORITHMS.contains(algorithm)) {
+            throw new ComponentValidationException("Unsupported password algorithm.");
+        }
+        if (ConfigurablePasswordEncoder.BCRYPT.equals(algorithm) && isNumeric(configMap.getFirst(PASSWORD_COST_KEY))
+                && (Long.parseLong(configMap.getFirst(PASSWORD_COST_KEY)) < 4 || Long.parseLong(configMap.getFirst(PASSWORD_COST_KEY)) > 31)) {
+            throw new ComponentValidationException("bcrypt strength must be between 4 and 31.");
+        }
+        String falsePositiveRate = configMap.getFirst(FILTER_FALSE_POSITIVE_RATE_KEY);
+        if (!isBlank(falsePositiveRate)) {
+            try {
+                double rate = Double.parseDouble(falsePositiveRate);
+                if (rate <= 0 || rate >= 1) {
+                    throw new ComponentValidationException("Filter false positive rate must be between 0 and 1.");
+                }
+            } catch (NumberFormatException e) {
+                throw new ComponentValidationException("Invalid filter false positive rate. (NaN)");
+            }
+        }
+        if (getInt(configMap, POOL_MAX_SIZE_KEY, 1) < 1) {
+            throw new ComponentValidationException("Pool maximum size must be at least 1.");
+        }
+    }
+
+    /**
+     * @return whether the value is an integer between {@code min} and {@code max}, as read by {@link Helpers#getInt}
+     */
+    private static boolean isInt(String value, int min, int max) {
+        if (value == null || !isNumeric(value.trim())) {
+            return false;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed >= min && parsed <= max;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
-    private PersistenceUnitInfo getPersistenceUnitInfo(String name) {
+    private static PersistenceUnitInfo getPersistenceUnitInfo(String name, DataSource dataSource) {
         return new PersistenceUnitInfo() {
             @Override
             public String getPersistenceUnitName() {
@@ -200,7 +910,7 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
 
             @Override
             public DataSource getNonJtaDataSource() {
-                return null;
+                return dataSource;
             }
 
             @Override
@@ -228,6 +938,7 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
             public List<String> getManagedClassNames() {
                 List<String> managedClasses = new LinkedList<>();
                 managedClasses.add(User.class.getName());
+                managedClasses.add(GroupMembership.class.getName());
                 return managedClasses;
             }
 
@@ -238,7 +949,8 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
 
             @Override
             public SharedCacheMode getSharedCacheMode() {
-                return SharedCacheMode.UNSPECIFIED;
+                // only the @Cacheable entities, when the second level cache is enabled
+                return SharedCacheMode.ENABLE_SELECTIVE;
             }
 
             @Override
@@ -0,0 +1,187 @@
+package com.ayoubanbara.beans;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.DelegatingPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.crypto.password.Pbkdf2PasswordEncoder;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Password encoder chosen per provider component: bcrypt, pbkdf2 or argon2 with a configurable cost.
+ * <p>
+ * bcrypt hashes are stored without id prefix, as they always were in {@code business_users}, argon2
+ * hashes as {@code {argon2}hash} and pbkdf2 hashes as {@code {pbkdf2@<iterations>}hash}, since unlike
+ * bcrypt and argon2 a pbkdf2 hash does not record its cost. Any of these formats is accepted by
+ * {@link #matches} whatever the configured cost, and {@link #upgradeEncoding} reports hashes made with
+ * another algorithm or a lower cost, so they can be re-encoded on the next successful login.
+ * <p>
+ * Older {@code {pbkdf2}hash} values, without iterations, are matched with the configured pbkdf2 cost
+ * (the default one under another algorithm) and always reported for re-encoding.
+ */
+@Slf4j
+public class ConfigurablePasswordEncoder implements PasswordEncoder {
+
+    public static final String BCRYPT = "bcrypt";
+    public static final String PBKDF2 = "pbkdf2";
+    public static final String ARGON2 = "argon2";
+    public static final List<String> ALGORITHMS = List.of(BCRYPT, PBKDF2, ARGON2);
+
+    private static final int CALIBRATION_ROUNDS = 3;
+    private static final String PBKDF2_PREFIX = "{" + PBKDF2 + "@";
+    /**
+     * pbkdf2 encoders per iteration count found in stored hashes, shared by the components.
+     */
+    private static final ConcurrentHashMap<Integer, PasswordEncoder> PBKDF2_MATCHERS = new ConcurrentHashMap<>();
+
+    private final String algorithm;
+    private final int cost;
+    private final PasswordEncoder encoder;
+    private final DelegatingPasswordEncoder matcher;
+
+    public ConfigurablePasswordEncoder(String algorithm, int cost) {
+        this.algorithm = algorithm;
+        this.cost = cost;
+        this.encoder = create(algorithm, cost);
+
+        Map<String, PasswordEncoder> encoders = new HashMap<>();
+        encoders.put(BCRYPT, algorithm.equals(BCRYPT) ? encoder : new BCryptPasswordEncoder());
+        encoders.put(PBKDF2, algorithm.equals(PBKDF2) ? encoder : create(PBKDF2, defaultCost(PBKDF2)));
+        encoders.put(ARGON2, algorithm.equals(ARGON2) ? encoder : create(ARGON2, defaultCost(ARGON2)));
+        this.matcher = new DelegatingPasswordEncoder(algorithm, encoders);
+        this.matcher.setDefaultPasswordEncoderForMatches(encoders.get(BCRYPT));
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        switch (algorithm) {
+            case BCRYPT:
+                // bcrypt keeps the unprefixed format other systems reading business_users expect
+                return encoder.encode(rawPassword);
+            case PBKDF2:
+                return PBKDF2_PREFIX + cost + "}" + encoder.encode(rawPassword);
+            default:
+                return matcher.encode(rawPassword);
+        }
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        if (encodedPassword != null && encodedPassword.startsWith(PBKDF2_PREFIX)) {
+            int end = encodedPassword.indexOf('}');
+            int iterations = pbkdf2Iterations(encodedPassword);
+            if (iterations <= 0) {
+                return false;
+            }
+            PasswordEncoder pbkdf2 = algorithm.equals(PBKDF2) && iterations == cost
+                    ? encoder : PBKDF2_MATCHERS.computeIfAbsent(iterations, count -> create(PBKDF2, count));
+            return pbkdf2.matches(rawPassword, encodedPassword.substring(end + 1));
+        }
+        return matcher.matches(rawPassword, encodedPassword);
+    }
+
+    /**
+     * @return the iterations of a {@code {pbkdf2@<iterations>}hash}, 0 when not a valid count
+     */
+    private static int pbkdf2Iterations(String encodedPassword) {
+        int end = encodedPassword.indexOf('}');
+        if (end < 0) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(encodedPassword.substring(PBKDF2_PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        if (encodedPassword == null || encodedPassword.isEmpty()) {
+            return false;
+        }
+        if (algorithm.equals(BCRYPT)) {
+            return encodedPassword.startsWith("{") || encoder.upgradeEncoding(encodedPassword);
+        }
+        if (algorithm.equals(PBKDF2)) {
+            return !encodedPassword.startsWith(PBKDF2_PREFIX) || pbkdf2Iterations(encodedPassword) < cost;
+        }
+        String prefix = "{" + algorithm + "}";
+        return !encodedPassword.startsWith(prefix) || encoder.upgradeEncoding(encodedPassword.substring(prefix.length()));
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    /**
+     * Cost meaning per algorithm: bcrypt strength (log2 rounds), pbkdf2 iterations, argon2 iterations.
+     */
+    public static int defaultCost(String algorithm) {
+        switch (algorithm) {
+            case PBKDF2:
+                return 310000;
+            case ARGON2:
+                return 3;
+            default:
+                return 10;
+        }
+    }
+
+    /**
+     * Picks the highest cost whose verification time stays within {@code targetMillis} on this hardware.
+     */
+    public static int calibrate(String algorithm, long targetMillis) {
+        int cost;
+        if (algorithm.equals(BCRYPT)) {
+            // each strength step doubles the work
+            cost = 4;
+            while (cost < 31 && measureMillis(algorithm, cost + 1) <= targetMillis) {
+                cost++;
+            }
+        } else {
+            // argon2 and pbkdf2 times grow linearly with their iterations
+            int probe = algorithm.equals(PBKDF2) ? 10000 : 1;
+            double millis = Math.max(measureMillis(algorithm, probe), 0.001);
+            cost = (int) Math.max(probe, Math.min(Integer.MAX_VALUE, probe * (targetMillis / millis)));
+        }
+        log.info("calibrated {} cost {} for a target of {} ms", algorithm, cost, targetMillis);
+        return cost;
+    }
+
+    private static double measureMillis(String algorithm, int cost) {
+        PasswordEncoder candidate = create(algorithm, cost);
+        String encoded = candidate.encode("calibration");
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            long start = System.nanoTime();
+            candidate.matches("calibration", encoded);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1_000_000.0;
+    }
+
+    private static PasswordEncoder create(String algorithm, int cost) {
+        switch (algorithm) {
+            case BCRYPT:
+                return new BCryptPasswordEncoder(cost);
+            case PBKDF2:
+                Pbkdf2PasswordEncoder pbkdf2 = new Pbkdf2PasswordEncoder("", 16, cost, 256);
+                pbkdf2.setAlgorithm(Pbkdf2PasswordEncoder.SecretKeyFactoryAlgorithm.PBKDF2WithHmacSHA256);
+                return pbkdf2;
+            case ARGON2:
+                return new Argon2PasswordEncoder(16, 32, 1, 1 << 14, cost);
+            default:
+                throw new IllegalArgumentException("Unsupported password algorithm " + algorithm);
+        }
+    }
+}
@@ -1,20 +1,23 @@
 package com.ayoubanbara.beans;
 
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 
+/**
+ * Default password encoder, bcrypt with the default strength. Provider components use the
+ * encoder configured for them, see {@link ConfigurablePasswordEncoder}.
+ */
 public class PasswordEncoderSingleton {
 
-    private static PasswordEncoder single_instance = null;
-
     private PasswordEncoderSingleton() {}
 
     public static PasswordEncoder getInstance()
     {
-        if (single_instance == null) {
-            single_instance = new BCryptPasswordEncoder();
-        }
-        return single_instance;
+        return Holder.INSTANCE;
+    }
+
+    private static class Holder {
+        private static final PasswordEncoder INSTANCE = new ConfigurablePasswordEncoder(ConfigurablePasswordEncoder.BCRYPT,
+                ConfigurablePasswordEncoder.defaultCost(ConfigurablePasswordEncoder.BCRYPT));
     }
 
 }
@@ -0,0 +1,147 @@
+package com.ayoubanbara.beans;
+
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.models.ModelException;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs password hash verifications, and the encodings of re-hashed passwords, on a dedicated,
+ * bounded pool so a login burst cannot take every request thread of the node.
+ * <p>
+ * When the queue is full, or with no queue when every thread is busy, the hash is rejected right
+ * away, and a caller waiting longer than {@code maxWaitMillis} gives up; both surface as a
+ * {@link ModelException} rather than an invalid password, so brute force detection does not count them.
+ */
+@Slf4j
+public class PasswordVerifier {
+
+    private final ThreadPoolExecutor executor;
+    private final long maxWaitMillis;
+
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final AtomicLong maxHashNanos = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * @param queueSize hashes waiting for a thread, 0 only hands them to an idle thread
+     */
+    public PasswordVerifier(String name, int threads, int queueSize, long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + "-verify-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public boolean matches(PasswordEncoder passwordEncoder, CharSequence rawPassword, String encodedPassword) {
+        return run(() -> timed(() -> passwordEncoder.matches(rawPassword, encodedPassword)));
+    }
+
+    public String encode(PasswordEncoder passwordEncoder, CharSequence rawPassword) {
+        return run(() -> timed(() -> passwordEncoder.encode(rawPassword)));
+    }
+
+    private <T> T run(Callable<T> hash) {
+        Future<T> result;
+        try {
+            result = executor.submit(hash);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            log.warn("password verification rejected, {} verifications queued", executor.getQueue().size());
+            throw new ModelException("Password verification capacity exceeded");
+        }
+        maxQueueDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+        try {
+            return result.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            timedOut.increment();
+            log.warn("password verification timed out after {} ms", maxWaitMillis);
+            throw new ModelException("Password verification timed out");
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ModelException("Password verification interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ModelException("Password verification failed", e.getCause());
+        }
+    }
+
+    private <T> T timed(Callable<T> hash) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return hash.call();
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            verifications.increment();
+            hashNanos.add(elapsed);
+            maxHashNanos.accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public int getActiveVerifications() {
+        return executor.getActiveCount();
+    }
+
+    public long getVerifications() {
+        return verifications.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    public double getAverageHashMillis() {
+        long count = verifications.sum();
+        return count == 0 ? 0 : (double) hashNanos.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxHashMillis() {
+        return (double) maxHashNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d queued=%d maxQueued=%d verified=%d rejected=%d timedOut=%d avgHashMs=%.3f maxHashMs=%.3f",
+                getActiveVerifications(), getQueueDepth(), getMaxQueueDepth(), getVerifications(), getRejected(),
+                getTimedOut(), getAverageHashMillis(), getMaxHashMillis());
+    }
+}
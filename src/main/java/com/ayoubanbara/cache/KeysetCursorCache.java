@@ -0,0 +1,82 @@
+package com.ayoubanbara.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Remembers where the pages of a listing or search ended, so the next page can seek from the last
+ * row of the previous one on {@code (email, id)} instead of skipping {@code firstResult} rows.
+ */
+public class KeysetCursorCache {
+
+    private final int maxSize;
+    private final LinkedHashMap<Key, Cursor> cursors;
+
+    public KeysetCursorCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.cursors = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cursor> eldest) {
+                return size() > KeysetCursorCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the last row before {@code offset} in the given search, null if unknown
+     */
+    public synchronized Cursor get(String search, int offset) {
+        return cursors.get(new Key(search, offset));
+    }
+
+    public synchronized void put(String search, int offset, Cursor cursor) {
+        cursors.put(new Key(search, offset), cursor);
+    }
+
+    public synchronized void clear() {
+        cursors.clear();
+    }
+
+    public static class Cursor {
+        private final String email;
+        private final Integer id;
+
+        public Cursor(String email, Integer id) {
+            this.email = email;
+            this.id = id;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public Integer getId() {
+            return id;
+        }
+    }
+
+    private static class Key {
+        private final String search;
+        private final int offset;
+
+        Key(String search, int offset) {
+            this.search = search;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return offset == key.offset && Objects.equals(search, key.search);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(search, offset);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.ayoubanbara.cache;
+
+import com.ayoubanbara.dao.UserDAO;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Answers "definitely not here" for unknown emails on the login path without touching the database.
+ * <p>
+ * Backed by an {@link EmailBloomFilter} built from the {@code business_users.email} column. Each
+ * refresh adds the rows whose {@code updated_at} is at most {@code lookback} older than the newest
+ * change seen, so rows committed late, out of id order or by other systems changing an email, are
+ * still added. A full rebuild on a longer interval catches the changes older than that margin and
+ * drops the emails other systems removed. Until the first build completes every email is let through.
+ */
+@Slf4j
+public class NegativeLookupFilter {
+
+    private final long expectedInsertions;
+    private final double falsePositiveProbability;
+    private final long lookbackMillis;
+    private final long rebuildNanos;
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    private volatile EmailBloomFilter filter;
+    private Date lastChange;
+    private long lastRebuildNanos;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+    private volatile long lastRebuildMillis;
+    private volatile long lastRefreshMillis;
+
+    /**
+     * @param lookback  margin re-read by each refresh, at least the longest transaction writing users
+     * @param rebuildInterval  interval of the full rebuilds
+     */
+    public NegativeLookupFilter(long expectedInsertions, double falsePositiveProbability, long lookback,
+                                long rebuildInterval, TimeUnit unit) {
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.lookbackMillis = unit.toMillis(lookback);
+        this.rebuildNanos = unit.toNanos(rebuildInterval);
+    }
+
+    /**
+     * @return false only if the email is definitely not in the table
+     */
+    public boolean mightContain(String email) {
+        EmailBloomFilter current = filter;
+        if (current == null || email == null || current.mightContain(email)) {
+            passed.increment();
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Records a lookup the database did not find, a false positive if the filter let the email through.
+     * Lookups let through before the first build, or with no email, are not the filter's answer and
+     * are not counted.
+     */
+    public void recordFalsePositive(String email) {
+        EmailBloomFilter current = filter;
+        if (current != null && email != null && current.mightContain(email)) {
+            falsePositives.increment();
+        }
+    }
+
+    /**
+     * Adds the rows changed since the last refresh, minus the lookback margin. Rebuilds the whole filter
+     * on first use, once the rebuild interval elapsed or when it grew past its sizing.
+     */
+    public void refresh(UserDAO userDAO) {
+        if (!refreshLock.tryLock()) {
+            return;
+        }
+        try {
+            EmailBloomFilter current = filter;
+            if (current == null) {
+                rebuild(userDAO, expectedInsertions);
+            } else if (current.getInsertions() > current.getExpectedInsertions()) {
+                rebuild(userDAO, Math.max(expectedInsertions, current.getInsertions() * 2));
+            } else if (System.nanoTime() - lastRebuildNanos > rebuildNanos) {
+                rebuild(userDAO, current.getExpectedInsertions());
+            } else {
+                long start = System.nanoTime();
+                Date since = lastChange == null ? null : new Date(lastChange.getTime() - lookbackMillis);
+                lastChange = userDAO.forEachEmailChangedSince(since, (id, email) -> current.put(email));
+                lastRefreshMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private void rebuild(UserDAO userDAO, long expected) {
+        long start = System.nanoTime();
+        EmailBloomFilter rebuilt = new EmailBloomFilter(expected, falsePositiveProbability);
+        Date rebuiltLastChange = userDAO.forEachEmailChangedSince(null, (id, email) -> rebuilt.put(email));
+        filter = rebuilt;
+        lastChange = rebuiltLastChange;
+        lastRebuildNanos = System.nanoTime();
+        rebuilds.increment();
+        lastRebuildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        lastRefreshMillis = lastRebuildMillis;
+        log.info("negative lookup filter rebuilt: {}", this);
+    }
+
+    public boolean isReady() {
+        return filter != null;
+    }
+
+    public long getEntries() {
+        EmailBloomFilter current = filter;
+        return current == null ? 0 : current.getInsertions();
+    }
+
+    public long getBitCount() {
+        EmailBloomFilter current = filter;
+        return current == null ? 0 : current.getBitCount();
+    }
+
+    public int getHashFunctions() {
+        EmailBloomFilter current = filter;
+        return current == null ? 0 : current.getHashFunctions();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getPassed() {
+        return passed.sum();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    /**
+     * @return false positives over all lookups of unknown emails (rejected or not)
+     */
+    public double getObservedFalsePositiveRate() {
+        long negatives = getRejected() + getFalsePositives();
+        return negatives == 0 ? 0 : (double) getFalsePositives() / negatives;
+    }
+
+    public double getExpectedFalsePositiveRate() {
+        EmailBloomFilter current = filter;
+        return current == null ? 0 : current.getExpectedFalsePositiveProbability();
+    }
+
+    public long getRebuilds() {
+        return rebuilds.sum();
+    }
+
+    public long getLastRebuildMillis() {
+        return lastRebuildMillis;
+    }
+
+    public long getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+
+    @Override
+    public String toString() {
+        EmailBloomFilter current = filter;
+        return String.format("entries=%d bits=%d hashes=%d rejected=%d passed=%d falsePositives=%d observedFpp=%.5f expectedFpp=%.5f rebuilds=%d lastRebuildMs=%d lastRefreshMs=%d",
+                current == null ? 0 : current.getInsertions(), current == null ? 0 : current.getBitCount(),
+                current == null ? 0 : current.getHashFunctions(), getRejected(), getPassed(), getFalsePositives(),
+                getObservedFalsePositiveRate(), getExpectedFalsePositiveRate(), getRebuilds(), getLastRebuildMillis(), getLastRefreshMillis());
+    }
+}
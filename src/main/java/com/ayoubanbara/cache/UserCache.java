@@ -0,0 +1,165 @@
+package com.ayoubanbara.cache;
+
+import com.ayoubanbara.model.User;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, time limited cache of {@link User} rows in front of the {@link com.ayoubanbara.dao.UserDAO},
+ * keyed by id and by normalized email.
+ * <p>
+ * Least recently used entries are evicted once {@code maxSize} is reached. Entries are copies,
+ * callers never share a mutable entity across sessions.
+ */
+public class UserCache {
+
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final LinkedHashMap<Integer, CachedUser> byId;
+    private final Map<String, Integer> idByEmail = new HashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public UserCache(int maxSize, long ttl, TimeUnit unit) {
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.byId = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CachedUser> eldest) {
+                if (size() <= UserCache.this.maxSize) {
+                    return false;
+                }
+                idByEmail.remove(eldest.getValue().email);
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    public User getById(Integer id) {
+        if (id == null) {
+            return null;
+        }
+        synchronized (this) {
+            return hitOrMiss(byId.get(id));
+        }
+    }
+
+    public User getByEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        synchronized (this) {
+            Integer id = idByEmail.get(normalize(email));
+            return hitOrMiss(id == null ? null : byId.get(id));
+        }
+    }
+
+    public void put(User user) {
+        if (user == null || user.getId() == null) {
+            return;
+        }
+        CachedUser entry = new CachedUser(copy(user), System.nanoTime() + ttlNanos);
+        synchronized (this) {
+            CachedUser previous = byId.put(user.getId(), entry);
+            if (previous != null) {
+                idByEmail.remove(previous.email);
+            }
+            if (entry.email != null) {
+                idByEmail.put(entry.email, user.getId());
+            }
+        }
+    }
+
+    public void invalidate(Integer id) {
+        if (id == null) {
+            return;
+        }
+        synchronized (this) {
+            remove(id);
+        }
+    }
+
+    public synchronized void clear() {
+        byId.clear();
+        idByEmail.clear();
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private User hitOrMiss(CachedUser entry) {
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expiresAt - System.nanoTime() < 0) {
+            remove(entry.user.getId());
+            evictions.increment();
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return copy(entry.user);
+    }
+
+    private void remove(Integer id) {
+        CachedUser entry = byId.remove(id);
+        if (entry != null && entry.email != null) {
+            idByEmail.remove(entry.email);
+        }
+    }
+
+    static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    static User copy(User user) {
+        return new User()
+                .setId(user.getId())
+                .setEmail(user.getEmail())
+                .setPassword(user.getPassword())
+                .setEnabled(user.isEnabled())
+                .setBlocked(user.isBlocked())
+                .setPhone(user.getPhone())
+                .setUpdatedAt(user.getUpdatedAt());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d hits=%d misses=%d evictions=%d", size(), getHits(), getMisses(), getEvictions());
+    }
+
+    private static class CachedUser {
+        private final User user;
+        private final String email;
+        private final long expiresAt;
+
+        CachedUser(User user, long expiresAt) {
+            this.user = user;
+            this.email = user.getEmail() == null ? null : normalize(user.getEmail());
+            this.expiresAt = expiresAt;
+        }
+    }
+}
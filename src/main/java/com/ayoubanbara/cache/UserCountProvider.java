@@ -0,0 +1,125 @@
+package com.ayoubanbara.cache;
+
+import com.ayoubanbara.dao.UserDAO;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Answers {@code getUsersCount} either exactly, from a periodically refreshed value or from the
+ * InnoDB table statistics.
+ */
+public class UserCountProvider {
+
+    public enum Mode {
+        /**
+         * {@code select count(u) from User u} on every call.
+         */
+        EXACT,
+        /**
+         * Exact count refreshed in the background, recomputed on the caller thread once older than the staleness bound.
+         */
+        CACHED,
+        /**
+         * Row estimate of {@code information_schema.tables}, cheap but may be off by a few tens of percent.
+         */
+        APPROXIMATE;
+
+        public static Mode of(String value) {
+            return value == null || value.isBlank() ? EXACT : valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final Mode mode;
+    private final long maxStalenessNanos;
+
+    private volatile int count;
+    private volatile long countedAt;
+    private volatile boolean counted;
+
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshNanos = new LongAdder();
+    private final AtomicLong maxRefreshNanos = new AtomicLong();
+    private volatile long lastRefreshNanos;
+
+    public UserCountProvider(Mode mode, long maxStaleness, TimeUnit unit) {
+        this.mode = mode;
+        this.maxStalenessNanos = unit.toNanos(maxStaleness);
+    }
+
+    public int count(UserDAO userDAO) {
+        switch (mode) {
+            case APPROXIMATE:
+                return timed(userDAO, dao -> {
+                    Long estimate = dao.approximateSize();
+                    return estimate == null ? dao.size() : (int) Math.min(Integer.MAX_VALUE, estimate);
+                });
+            case CACHED:
+                if (!counted || System.nanoTime() - countedAt > maxStalenessNanos) {
+                    refresh(userDAO);
+                }
+                return count;
+            default:
+                return timed(userDAO, UserDAO::size);
+        }
+    }
+
+    /**
+     * Recomputes the exact count, called periodically in {@link Mode#CACHED} mode.
+     */
+    public void refresh(UserDAO userDAO) {
+        count = timed(userDAO, UserDAO::size);
+        countedAt = System.nanoTime();
+        counted = true;
+    }
+
+    private int timed(UserDAO userDAO, ToIntFunction<UserDAO> counter) {
+        long start = System.nanoTime();
+        try {
+            return counter.applyAsInt(userDAO);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            refreshes.increment();
+            refreshNanos.add(elapsed);
+            lastRefreshNanos = elapsed;
+            maxRefreshNanos.accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    public double getAverageRefreshMillis() {
+        long refreshCount = refreshes.sum();
+        return refreshCount == 0 ? 0 : (double) refreshNanos.sum() / refreshCount / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getLastRefreshMillis() {
+        return (double) lastRefreshNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxRefreshMillis() {
+        return (double) maxRefreshNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the age of the cached count in seconds, -1 if none yet
+     */
+    public long getAgeSeconds() {
+        return counted ? TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - countedAt) : -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mode=%s refreshes=%d avgRefreshMs=%.3f lastRefreshMs=%.3f maxRefreshMs=%.3f ageS=%d",
+                mode, getRefreshes(), getAverageRefreshMillis(), getLastRefreshMillis(), getMaxRefreshMillis(), getAgeSeconds());
+    }
+}
@@ -0,0 +1,144 @@
+package com.ayoubanbara.cache;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short lived record of successful password verifications, so clients re-authenticating the same
+ * user and password every few seconds skip the hash verification.
+ * <p>
+ * An entry holds a keyed HMAC of the presented secret, never the secret itself, and the stored hash
+ * it was verified against: a changed hash is a miss. The HMAC key is random per instance and never
+ * leaves memory.
+ */
+public class VerifiedCredentialCache {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final LinkedHashMap<String, Verification> verifications;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder savedNanos = new LongAdder();
+
+    public VerifiedCredentialCache(int maxSize, long ttl, TimeUnit unit) {
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, HMAC_ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        this.verifications = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verification> eldest) {
+                return size() > VerifiedCredentialCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return whether the secret was verified against the same stored hash within the TTL
+     */
+    public boolean isVerified(String userId, String secret, String storedHash) {
+        if (userId == null || secret == null || storedHash == null) {
+            return false;
+        }
+        byte[] mac = mac(userId, secret);
+        Verification verification;
+        synchronized (this) {
+            verification = verifications.get(userId);
+        }
+        if (verification != null && verification.expiresAt - System.nanoTime() > 0
+                && verification.storedHash.equals(storedHash) && MessageDigest.isEqual(verification.mac, mac)) {
+            hits.increment();
+            savedNanos.add(verification.verificationNanos);
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    public void record(String userId, String secret, String storedHash, long verificationNanos) {
+        if (userId == null || secret == null || storedHash == null) {
+            return;
+        }
+        Verification verification = new Verification(mac(userId, secret), storedHash,
+                System.nanoTime() + ttlNanos, verificationNanos);
+        synchronized (this) {
+            verifications.put(userId, verification);
+        }
+    }
+
+    public synchronized void invalidate(String userId) {
+        verifications.remove(userId);
+    }
+
+    public synchronized void clear() {
+        verifications.clear();
+    }
+
+    public synchronized int size() {
+        return verifications.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return hash verification time skipped thanks to the cache
+     */
+    public long getSavedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(savedNanos.sum());
+    }
+
+    private byte[] mac(String userId, String secret) {
+        Mac mac = macs.get();
+        mac.update(userId.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d hits=%d misses=%d savedMs=%d", size(), getHits(), getMisses(), getSavedMillis());
+    }
+
+    private static class Verification {
+        private final byte[] mac;
+        private final String storedHash;
+        private final long expiresAt;
+        private final long verificationNanos;
+
+        Verification(byte[] mac, String storedHash, long expiresAt, long verificationNanos) {
+            this.mac = mac;
+            this.storedHash = storedHash;
+            this.expiresAt = expiresAt;
+            this.verificationNanos = verificationNanos;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.ayoubanbara.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads the native group memberships of the users handed out during one Keycloak session.
+ * <p>
+ * Users are registered as their models are created, the first group lookup then loads the
+ * memberships of every registered user in one query, so resolving the groups of a page of users
+ * (or of the user of a token and its mappers) costs one query instead of one per user or group.
+ * <p>
+ * Only the last {@value #MAX_BATCH_SIZE} registered users wait for the next load, and the memberships
+ * of the last {@value #MAX_LOADED_USERS} loaded users are kept, so streaming every user through one
+ * session does not keep every membership in memory.
+ */
+public class GroupMembershipLoader {
+
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int MAX_LOADED_USERS = 10000;
+
+    private final UserDAO userDAO;
+    private final Map<Integer, Set<String>> loaded = new LinkedHashMap<>();
+    private final Set<Integer> pending = new LinkedHashSet<>();
+
+    public GroupMembershipLoader(UserDAO userDAO) {
+        this.userDAO = userDAO;
+    }
+
+    public void register(Integer userId) {
+        if (userId != null && !loaded.containsKey(userId) && pending.add(userId) && pending.size() > MAX_BATCH_SIZE) {
+            // the users registered first are the least likely to be looked up next
+            Iterator<Integer> oldest = pending.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * @return the ids of the groups the user belongs to in {@code business_user_groups}
+     */
+    public Set<String> getGroupIds(Integer userId) {
+        Set<String> groupIds = loaded.get(userId);
+        if (groupIds == null) {
+            groupIds = load(userId);
+        }
+        return Collections.unmodifiableSet(groupIds);
+    }
+
+    /**
+     * Forgets the memberships loaded so far, e.g. after they changed.
+     */
+    public void invalidate(Integer userId) {
+        loaded.remove(userId);
+    }
+
+    /**
+     * Loads the memberships of the requested user together with the pending ones.
+     *
+     * @return the group ids of the requested user
+     */
+    private Set<String> load(Integer requested) {
+        pending.remove(requested);
+        List<Integer> batch = new ArrayList<>(Math.min(pending.size() + 1, MAX_BATCH_SIZE));
+        batch.add(requested);
+        for (Iterator<Integer> userIds = pending.iterator(); userIds.hasNext() && batch.size() < MAX_BATCH_SIZE; ) {
+            batch.add(userIds.next());
+            userIds.remove();
+        }
+        Map<Integer, Set<String>> memberships = new HashMap<>();
+        batch.forEach(userId -> memberships.put(userId, new LinkedHashSet<>()));
+        userDAO.forEachGroupMembership(batch, (userId, groupId) -> memberships.get(userId).add(groupId));
+        loaded.putAll(memberships);
+        for (Iterator<Integer> oldest = loaded.keySet().iterator(); loaded.size() > MAX_LOADED_USERS; ) {
+            oldest.next();
+            oldest.remove();
+        }
+        return memberships.get(requested);
+    }
+}
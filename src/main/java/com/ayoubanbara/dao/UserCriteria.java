@@ -0,0 +1,123 @@
+package com.ayoubanbara.dao;
+
+import com.ayoubanbara.model.User;
+import com.ayoubanbara.search.SearchMode;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates the Keycloak user search parameters and the attributes mapped on {@code business_users}
+ * columns into one parameterized criteria query, ordered by {@code (email, id)} like the other listings.
+ * <p>
+ * Parameters that are not mapped on a column cannot match any row, the query then returns nothing
+ * without reaching the database.
+ */
+class UserCriteria {
+
+    /**
+     * Keycloak parameters controlling the search rather than filtering on a user property.
+     */
+    private static final Set<String> CONTROL_PARAMS = Set.of(UserModel.EXACT, UserModel.INCLUDE_SERVICE_ACCOUNT);
+
+    private final CriteriaBuilder builder;
+    private final CriteriaQuery<User> query;
+    private final Root<User> user;
+    private final SearchMode searchMode;
+    private final List<Predicate> predicates = new ArrayList<>();
+    private boolean unsatisfiable;
+
+    UserCriteria(EntityManager entityManager, SearchMode searchMode) {
+        this.builder = entityManager.getCriteriaBuilder();
+        this.query = builder.createQuery(User.class);
+        this.user = query.from(User.class);
+        this.searchMode = searchMode;
+    }
+
+    UserCriteria params(Map<String, String> params) {
+        boolean exact = Boolean.parseBoolean(params.get(UserModel.EXACT));
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (param.getValue() == null || CONTROL_PARAMS.contains(param.getKey())) {
+                continue;
+            }
+            if (UserModel.SEARCH.equals(param.getKey())) {
+                search(param.getValue());
+            } else {
+                attribute(param.getKey(), param.getValue(), exact);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Keycloak's free text search: {@code *} matches everyone, otherwise the email contains the term.
+     */
+    UserCriteria search(String term) {
+        String trimmed = term.trim();
+        if (!trimmed.isEmpty() && !trimmed.equals("*")) {
+            email(trimmed.replace("*", ""), false);
+        }
+        return this;
+    }
+
+    UserCriteria attribute(String name, String value, boolean exact) {
+        switch (name) {
+            case UserModel.USERNAME:
+            case UserModel.EMAIL:
+                email(value.trim(), exact);
+                break;
+            case UserModel.ENABLED:
+                // a blocked user is reported disabled, see UserRepresentation#isEnabled
+                Predicate enabled = builder.and(builder.isTrue(user.get("enabled")), builder.isFalse(user.get("blocked")));
+                predicates.add(Boolean.parseBoolean(value.trim()) ? enabled : builder.not(enabled));
+                break;
+            case "phone":
+                predicates.add(builder.equal(user.get("phone"), value.trim()));
+                break;
+            case "blocked":
+                predicates.add(builder.equal(user.get("blocked"), Boolean.parseBoolean(value.trim())));
+                break;
+            default:
+                unsatisfiable = true;
+        }
+        return this;
+    }
+
+    private void email(String value, boolean exact) {
+        Path<String> email = user.get("email");
+        if (exact) {
+            // the unique index answers the equality, its collation being case insensitive
+            predicates.add(builder.equal(email, value));
+        } else if (searchMode == SearchMode.PREFIX) {
+            predicates.add(builder.like(email, escapeLike(value) + "%", '!'));
+        } else {
+            predicates.add(builder.like(builder.lower(email), "%" + escapeLike(value.toLowerCase(Locale.ROOT)) + "%", '!'));
+        }
+    }
+
+    boolean isUnsatisfiable() {
+        return unsatisfiable;
+    }
+
+    TypedQuery<User> build(EntityManager entityManager) {
+        query.select(user)
+                .where(predicates.toArray(new Predicate[0]))
+                .orderBy(builder.asc(user.get("email")), builder.asc(user.get("id")));
+        return entityManager.createQuery(query);
+    }
+
+    static String escapeLike(String term) {
+        return term.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+}
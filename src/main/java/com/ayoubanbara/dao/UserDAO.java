@@ -1,21 +1,115 @@
 package com.ayoubanbara.dao;
 
+import com.ayoubanbara.ComponentResources;
+import com.ayoubanbara.cache.KeysetCursorCache;
+import com.ayoubanbara.cache.NegativeLookupFilter;
+import com.ayoubanbara.cache.UserCache;
+import com.ayoubanbara.datasource.ReplicaRouter;
+import com.ayoubanbara.datasource.SecondLevelCache;
+import com.ayoubanbara.metrics.Operation;
+import com.ayoubanbara.metrics.ProviderMetrics;
+import com.ayoubanbara.metrics.Tracer;
 import com.ayoubanbara.model.User;
+import com.ayoubanbara.search.NgramIndex;
+import com.ayoubanbara.search.SearchMode;
+import com.ayoubanbara.search.SearchPlan;
+import jakarta.persistence.CacheRetrieveMode;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityTransaction;
+import jakarta.persistence.PersistenceException;
 import jakarta.persistence.TypedQuery;
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+import org.keycloak.models.KeycloakTransactionManager;
 
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
+/**
+ * Data access of {@code business_users}.
+ * <p>
+ * Reads run as read-only queries and their entities are detached as soon as they are loaded, so the
+ * long-lived entity manager keeps no snapshots and does not grow with every listing. Only
+ * {@link #createUser} works on managed entities, and detaches them once committed. {@link #updateUser}
+ * writes the changed attributes with an update statement, so it never writes back stale columns of a
+ * cached or replicated copy.
+ * <p>
+ * Once {@link #enlistIn enlisted} in a Keycloak session, writes are queued until the session commits,
+ * see {@link UserWriteTransaction}.
+ * <p>
+ * Given {@link #readFrom read replicas}, reads go to the replica selected for the session until the
+ * first write, and to the primary from then on so the session reads its own writes. A read failing to
+ * reach its replica is retried on the primary.
+ */
 @Slf4j
 public class UserDAO {
 
+    private static final String READ_ONLY_HINT = "org.hibernate.readOnly";
+    private static final String FETCH_SIZE_HINT = "org.hibernate.fetchSize";
+    private static final String RETRIEVE_MODE_HINT = "jakarta.persistence.cache.retrieveMode";
+
+    /**
+     * Attributes {@link #updateUser} can write, with their value.
+     */
+    private static final Map<String, Function<User, Object>> UPDATABLE_ATTRIBUTES = Map.of(
+            "password", User::getPassword,
+            "phone", User::getPhone);
+
     private final EntityManager entityManager;
+    private final UserCache userCache;
+    private final NegativeLookupFilter negativeLookupFilter;
+    private final KeysetCursorCache keysetCursors;
+    private final SearchMode searchMode;
+    private final NgramIndex ngramIndex;
+    private final int fetchSize;
+    private final ProviderMetrics metrics;
+    private KeycloakTransactionManager transactionManager;
+    private UserWriteTransaction writeTransaction;
+    private ReplicaRouter replicaRouter;
+    private ReplicaRouter.Replica replica;
+    private EntityManager replicaEntityManager;
+    private boolean pinnedToPrimary;
+    private boolean lastReadFromReplica;
+    private Runnable onClose;
 
     public UserDAO(EntityManager entityManager) {
+        this(entityManager, null);
+    }
+
+    public UserDAO(EntityManager entityManager, ComponentResources resources) {
         this.entityManager = entityManager;
+        this.userCache = resources == null ? null : resources.getUserCache();
+        this.negativeLookupFilter = resources == null ? null : resources.getNegativeLookupFilter();
+        this.keysetCursors = resources == null ? null : resources.getKeysetCursors();
+        this.searchMode = resources == null ? SearchMode.SUBSTRING : resources.getSearchMode();
+        this.ngramIndex = resources == null ? null : resources.getNgramIndex();
+        this.fetchSize = resources == null ? 500 : resources.getFetchSize();
+        this.metrics = resources == null ? null : resources.getMetrics();
+    }
+
+    /**
+     * Defers the writes of this DAO to the given session transaction instead of committing each one.
+     */
+    public void enlistIn(KeycloakTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    /**
+     * Sends the reads of this DAO to the given replicas, none when null.
+     */
+    public void readFrom(ReplicaRouter replicaRouter) {
+        this.replicaRouter = replicaRouter;
     }
 
     public List<User> findAll() {
@@ -27,15 +121,76 @@ public class UserDAO {
     }
 
     private List<User> findAll(Integer start, Integer max) {
-        TypedQuery<User> query = entityManager.createNamedQuery("searchForUser", User.class);
-        if(start != null) {
-            query.setFirstResult(start);
+        return findPage("searchForUser", "%", start, max);
+    }
+
+    /**
+     * Streams every user in email order without materializing the result, see {@link #streamSearch(String)}.
+     */
+    public Stream<User> streamAll() {
+        return streamSearch(null);
+    }
+
+    /**
+     * Streams the users matching the search term from a scrollable result read {@code fetchSize} rows
+     * at a time, each row detached once read so the persistence context does not grow with the table.
+     * The caller must close the stream.
+     */
+    public Stream<User> streamSearch(String searchString) {
+        log.debug("streamSearch(searchString: {})",searchString);
+        SearchPlan plan = SearchPlan.of(searchMode, searchString, ngramIndex);
+        EntityManager reader = reader();
+        TypedQuery<User> query = reader.createNamedQuery(
+                plan.getTerm() != null && plan.getMode() == SearchMode.PREFIX ? "searchForUserByPrefix" : "searchForUser", User.class);
+        if (plan.getTerm() == null) {
+            query.setParameter("search", "%");
+        } else if (plan.getMode() == SearchMode.PREFIX) {
+            query.setParameter("search", escapeLike(plan.getTerm()) + "%");
+        } else if (plan.getMode() == SearchMode.SUBSTRING) {
+            query.setParameter("search", "%" + escapeLike(plan.getTerm().toLowerCase(Locale.ROOT)) + "%");
+        } else {
+            // fulltext and n-gram results are bounded by their own lookups
+            return searchForUserByUsernameOrEmail(searchString, null, null).stream();
         }
-        if(max != null) {
-            query.setMaxResults(max);
+        query.setHint(FETCH_SIZE_HINT, fetchSize);
+        return readOnly(query).getResultStream().peek(reader::detach);
+    }
+
+    /**
+     * Pages through the users matching {@code search} in {@code (email, id)} order. When the previous
+     * page ended at {@code start}, the page seeks from its last row instead of skipping {@code start} rows.
+     */
+    private List<User> findPage(String queryName, String search, Integer start, Integer max) {
+        String cursorKey = queryName + ":" + search;
+        KeysetCursorCache.Cursor cursor = keysetCursors != null && start != null && start > 0
+                ? keysetCursors.get(cursorKey, start)
+                : null;
+        List<User> users = read(reader -> {
+            TypedQuery<User> query;
+            if (cursor != null) {
+                query = reader.createNamedQuery(queryName + "After", User.class);
+                query.setParameter("email", cursor.getEmail());
+                query.setParameter("id", cursor.getId());
+            } else {
+                query = reader.createNamedQuery(queryName, User.class);
+                if(start != null) {
+                    query.setFirstResult(start);
+                }
+            }
+            if(max != null) {
+                query.setMaxResults(max);
+            }
+            query.setParameter("search", search);
+            return detached(reader, list(query));
+        });
+        if (keysetCursors != null && max != null && !users.isEmpty()) {
+            User last = users.get(users.size() - 1);
+            if (last.getEmail() != null) {
+                int end = (start == null ? 0 : start) + users.size();
+                keysetCursors.put(cursorKey, end, new KeysetCursorCache.Cursor(last.getEmail(), last.getId()));
+            }
         }
-        query.setParameter("search", "%");
-        return query.getResultList();
+        return users;
     }
 
     /*public Optional<User> getUserByUsername(String username) {
@@ -46,63 +201,534 @@ public class UserDAO {
     }*/
 
     public Optional<User> getUserByEmail(String email) {
-        log.info("getUserByEmail(email: {} )",email);
-        TypedQuery<User> query = entityManager.createNamedQuery("getUserByEmail", User.class);
-        query.setParameter("email", email);
-        return query.getResultList().stream().findFirst();
+        log.debug("getUserByEmail(email: {} )",email);
+        if (writeTransaction != null && writeTransaction.getByEmail(email) != null) {
+            return Optional.of(writeTransaction.getByEmail(email));
+        }
+        if (negativeLookupFilter != null && !negativeLookupFilter.mightContain(email)) {
+            return Optional.empty();
+        }
+        if (userCache != null) {
+            User cached = userCache.getByEmail(email);
+            if (cached != null) {
+                return Optional.of(cached);
+            }
+        }
+        Optional<User> user = read(reader -> {
+            TypedQuery<User> query = reader.createNamedQuery("getUserByEmail", User.class);
+            query.setParameter("email", email);
+            return detached(reader, list(query)).stream().findFirst();
+        });
+        if (cacheable()) {
+            user.ifPresent(userCache::put);
+        }
+        if (negativeLookupFilter != null && user.isEmpty()) {
+            negativeLookupFilter.recordFalsePositive(email);
+        }
+        return user;
     }
 
     public List<User> searchForUserByUsernameOrEmail(String searchString) {
-        log.info("searchForUserByUsernameOrEmail(searchString: {})",searchString);
+        log.debug("searchForUserByUsernameOrEmail(searchString: {})",searchString);
         return searchForUserByUsernameOrEmail(searchString, null, null);
     }
 
     public List<User> searchForUserByUsernameOrEmail(String searchString, int start, int max) {
-        log.info("searchForUserByUsernameOrEmail(searchString: {}, start: {}, max: {}",searchString,start,max);
+        log.debug("searchForUserByUsernameOrEmail(searchString: {}, start: {}, max: {}",searchString,start,max);
         return searchForUserByUsernameOrEmail(searchString, (Integer)start, (Integer)max);
     }
 
     private List<User> searchForUserByUsernameOrEmail(String searchString, Integer start, Integer max) {
-        log.info("searchForUserByUsernameOrEmail(searchString: {}, start: {}, max: {}",searchString,start,max);
-        TypedQuery<User> query = entityManager.createNamedQuery("searchForUser", User.class);
-        query.setParameter("search", "%" + searchString + "%");
-        if(start != null) {
-            query.setFirstResult(start);
+        log.debug("searchForUserByUsernameOrEmail(searchString: {}, start: {}, max: {}",searchString,start,max);
+        SearchPlan plan = SearchPlan.of(searchMode, searchString, ngramIndex);
+        if (plan.getTerm() == null) {
+            return findPage("searchForUser", "%", start, max);
+        }
+        switch (plan.getMode()) {
+            case PREFIX:
+                return findPage("searchForUserByPrefix", escapeLike(plan.getTerm()) + "%", start, max);
+            case FULLTEXT:
+                return fullTextSearch(plan.getTerm(), start, max);
+            case NGRAM:
+                List<Integer> ids = ngramIndex.search(plan.getTerm());
+                if (ids != null) {
+                    int from = Math.min(start == null ? 0 : start, ids.size());
+                    int to = max == null || max < 0 ? ids.size() : (int) Math.min(ids.size(), (long) from + max);
+                    return getUsersByIds(ids.subList(from, to));
+                }
+                // too unselective for the index, let the database scan
+                return substringSearch(plan.getTerm(), start, max);
+            default:
+                return substringSearch(plan.getTerm(), start, max);
+        }
+    }
+
+    private List<User> substringSearch(String term, Integer start, Integer max) {
+        return findPage("searchForUser", "%" + escapeLike(term.toLowerCase(Locale.ROOT)) + "%", start, max);
+    }
+
+    private List<User> fullTextSearch(String term, Integer start, Integer max) {
+        StringBuilder against = new StringBuilder();
+        for (String word : term.split("[^\\p{L}\\p{N}_]+")) {
+            if (!word.isEmpty()) {
+                against.append('+').append(word).append("* ");
+            }
         }
-        if(max != null) {
+        if (against.length() == 0) {
+            return findPage("searchForUser", "%", start, max);
+        }
+        return read(reader -> {
+            @SuppressWarnings("unchecked")
+            TypedQuery<User> query = (TypedQuery<User>) reader.createNativeQuery(
+                    "select * from business_users where match(email) against (:term in boolean mode) order by email, id", User.class);
+            query.setParameter("term", against.toString().trim());
+            if(start != null) {
+                query.setFirstResult(start);
+            }
+            if(max != null) {
+                query.setMaxResults(max);
+            }
+            return detached(reader, list(query));
+        });
+    }
+
+    /**
+     * @return the users with the given ids, in the order of the ids
+     */
+    public List<User> getUsersByIds(List<Integer> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<User> found = read(reader -> {
+            TypedQuery<User> query = reader.createNamedQuery("getUsersByIds", User.class);
+            query.setParameter("ids", ids);
+            return detached(reader, list(query));
+        });
+        Map<Integer, User> byId = new HashMap<>();
+        for (User user : found) {
+            byId.put(user.getId(), user);
+        }
+        List<User> users = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            User user = byId.get(id);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    private <T> List<T> list(TypedQuery<T> query) {
+        Tracer.parameters(query);
+        return readOnly(query).getResultList();
+    }
+
+    /**
+     * Runs the reads on the entity manager of the session replica, or of the primary, their time recorded
+     * as {@link Operation#DB_QUERY}. The reads are run again on the primary when the replica cannot be reached.
+     */
+    private <T> T read(Function<EntityManager, T> reads) {
+        EntityManager reader = reader();
+        lastReadFromReplica = false;
+        if (reader == entityManager) {
+            return timed(Operation.DB_QUERY, () -> reads.apply(entityManager));
+        }
+        long start = System.nanoTime();
+        try {
+            T result = timed(Operation.DB_QUERY, () -> reads.apply(reader));
+            replica.recordLatency(System.nanoTime() - start);
+            lastReadFromReplica = true;
+            return result;
+        } catch (PersistenceException e) {
+            if (!ReplicaRouter.isConnectionFailure(e)) {
+                throw e;
+            }
+            replica.markDown(e);
+            closeReplica();
+            return timed(Operation.DB_QUERY, () -> reads.apply(entityManager));
+        }
+    }
+
+    /**
+     * Rows read from a replica may lag behind the primary, they are not shared with the other sessions
+     * through the user cache, which would keep serving them after a write invalidated the entry.
+     *
+     * @return whether the user of the last read may be put in the user cache
+     */
+    private boolean cacheable() {
+        return userCache != null && !lastReadFromReplica;
+    }
+
+    /**
+     * @return the entity manager the reads of the session go to
+     */
+    private EntityManager reader() {
+        if (replicaRouter == null || pinnedToPrimary) {
+            return entityManager;
+        }
+        if (replica != null && !replica.isHealthy()) {
+            closeReplica();
+        }
+        if (replica == null) {
+            ReplicaRouter.Replica selected = replicaRouter.select();
+            if (selected == null) {
+                return entityManager;
+            }
+            replicaEntityManager = selected.openEntityManager();
+            replica = selected;
+        }
+        return replicaEntityManager;
+    }
+
+    /**
+     * Reads from the primary for the rest of the session, after a write.
+     */
+    private void pinToPrimary() {
+        pinnedToPrimary = true;
+        closeReplica();
+    }
+
+    private void closeReplica() {
+        if (replicaEntityManager != null) {
+            replicaEntityManager.close();
+        }
+        replicaEntityManager = null;
+        replica = null;
+    }
+
+    private <T> T timed(Operation operation, Supplier<T> work) {
+        return metrics == null ? work.get() : metrics.time(operation, work);
+    }
+
+    private <T> TypedQuery<T> readOnly(TypedQuery<T> query) {
+        return query.setHint(READ_ONLY_HINT, true);
+    }
+
+    private List<User> detached(EntityManager reader, List<User> users) {
+        users.forEach(reader::detach);
+        return users;
+    }
+
+    private static String escapeLike(String term) {
+        return UserCriteria.escapeLike(term);
+    }
+
+    /**
+     * Filters on the Keycloak search parameters ({@link org.keycloak.models.UserModel#SEARCH}, email,
+     * username, enabled, ...) in the database, see {@link UserCriteria}.
+     */
+    public List<User> searchByParams(Map<String, String> params, Integer start, Integer max) {
+        log.debug("searchByParams(params: {}, start: {}, max: {})",params,start,max);
+        return page(reader -> new UserCriteria(reader, searchMode).params(params), start, max);
+    }
+
+    /**
+     * @return the users whose attribute mapped on a column equals the value, none for unmapped attributes
+     */
+    public List<User> searchByAttribute(String name, String value, Integer start, Integer max) {
+        log.debug("searchByAttribute(name: {}, value: {})",name,value);
+        return page(reader -> new UserCriteria(reader, searchMode).attribute(name, value, true), start, max);
+    }
+
+    /**
+     * @param since only users changed after this date when not null
+     * @return the next {@code max} users with an id greater than {@code lastId}, in id order
+     */
+    public List<User> getUsersAfterId(int lastId, Date since, int max) {
+        return read(reader -> {
+            TypedQuery<User> query = reader.createNamedQuery(since == null ? "getUsersAfterId" : "getUsersChangedAfterId", User.class);
+            query.setParameter("id", lastId);
+            if (since != null) {
+                query.setParameter("since", since);
+            }
+            query.setMaxResults(max);
+            return detached(reader, list(query));
+        });
+    }
+
+    /**
+     * @return the first {@code max} users after {@code (since, lastId)} in {@code (updated_at, id)} order
+     */
+    public List<User> getUsersChangedSince(Date since, int lastId, int max) {
+        return read(reader -> {
+            TypedQuery<User> query = reader.createNamedQuery("getUsersChangedSince", User.class);
+            query.setParameter("since", since);
+            query.setParameter("id", lastId);
             query.setMaxResults(max);
+            return detached(reader, list(query));
+        });
+    }
+
+    /**
+     * @return the newest {@code updated_at} of the table, null when it is empty
+     */
+    public Date getLastChange() {
+        return entityManager.createNamedQuery("getLastChange", Date.class).getSingleResult();
+    }
+
+    /**
+     * @return the members of the group in {@code business_user_groups}, in user id order
+     */
+    public List<User> getGroupMembers(String groupId, Integer start, Integer max) {
+        log.debug("getGroupMembers(groupId: {}, start: {}, max: {})",groupId,start,max);
+        return read(reader -> {
+            TypedQuery<User> query = reader.createNamedQuery("getGroupMembers", User.class);
+            query.setParameter("groupId", groupId);
+            if(start != null && start > 0) {
+                query.setFirstResult(start);
+            }
+            if(max != null && max >= 0) {
+                query.setMaxResults(max);
+            }
+            return detached(reader, list(query));
+        });
+    }
+
+    /**
+     * Reads the (user id, group id) memberships of the given users in one query.
+     */
+    public void forEachGroupMembership(Collection<Integer> userIds, BiConsumer<Integer, String> consumer) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = read(reader -> {
+            TypedQuery<Object[]> query = reader.createNamedQuery("getGroupIdsOfUsers", Object[].class);
+            query.setParameter("userIds", userIds);
+            return list(query);
+        });
+        for (Object[] row : rows) {
+            consumer.accept((Integer) row[0], (String) row[1]);
         }
-        return query.getResultList();
+    }
+
+    /**
+     * @param criteria the criteria, built on the criteria builder of the entity manager running them
+     */
+    private List<User> page(Function<EntityManager, UserCriteria> criteria, Integer start, Integer max) {
+        return read(reader -> {
+            UserCriteria built = criteria.apply(reader);
+            if (built.isUnsatisfiable()) {
+                return new ArrayList<>();
+            }
+            TypedQuery<User> query = built.build(reader);
+            if(start != null && start > 0) {
+                query.setFirstResult(start);
+            }
+            if(max != null && max >= 0) {
+                query.setMaxResults(max);
+            }
+            return detached(reader, list(query));
+        });
+    }
+
+    /**
+     * Streams the (id, email) pairs of the users changed at or after {@code since}, or of every user
+     * when null, in id order.
+     *
+     * @return the newest {@code updated_at} seen, {@code since} if there is none
+     */
+    public Date forEachEmailChangedSince(Date since, BiConsumer<Integer, String> consumer) {
+        TypedQuery<Object[]> query = since == null
+                ? entityManager.createNamedQuery("getEmails", Object[].class)
+                : entityManager.createNamedQuery("getEmailsChangedSince", Object[].class).setParameter("since", since);
+        query.setHint(FETCH_SIZE_HINT, fetchSize);
+        query.setHint(READ_ONLY_HINT, true);
+        Date lastChange = since;
+        try (Stream<Object[]> rows = query.getResultStream()) {
+            for (Object[] row : (Iterable<Object[]>) rows::iterator) {
+                if (row[1] != null) {
+                    consumer.accept((Integer) row[0], (String) row[1]);
+                }
+                Date updatedAt = (Date) row[2];
+                if (updatedAt != null && (lastChange == null || updatedAt.after(lastChange))) {
+                    lastChange = updatedAt;
+                }
+            }
+        }
+        return lastChange;
     }
 
     public User getUserById(String id) {
-        log.info("getUserById(id: {} )",id);
+        log.debug("getUserById(id: {} )",id);
 //        return entityManager.find(User.class, UUID.fromString(id));
-        return entityManager.find(User.class, Integer.parseInt(id));
+        Integer userId = Integer.parseInt(id);
+        if (writeTransaction != null && writeTransaction.getById(userId) != null) {
+            return writeTransaction.getById(userId);
+        }
+        if (userCache != null) {
+            User cached = userCache.getById(userId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        User user = read(reader -> {
+            User found = reader.find(User.class, userId, Map.of(READ_ONLY_HINT, true));
+            if (found != null) {
+                reader.detach(found);
+            }
+            return found;
+        });
+        if (cacheable()) {
+            userCache.put(user);
+        }
+        return user;
     }
 
+    /**
+     * Inserts the user, when the session commits if this DAO is enlisted. The generated id is only set by then.
+     */
     public User createUser(User user) {
-        EntityTransaction transaction = entityManager.getTransaction();
-        transaction.begin();
-        entityManager.persist(user);
-        transaction.commit();
-        return user;
+        pinToPrimary();
+        UserWriteTransaction pending = writeTransaction();
+        if (pending != null) {
+            pending.create(user);
+            return user;
+        }
+        return timed(Operation.DB_WRITE, () -> {
+            EntityTransaction transaction = entityManager.getTransaction();
+            transaction.begin();
+            entityManager.persist(user);
+            transaction.commit();
+            entityManager.detach(user);
+            return user;
+        });
     }
 
 
+    /**
+     * Runs the given action once the entity managers of this DAO are closed, e.g. to return the lease on its connection.
+     */
+    public void onClose(Runnable action) {
+        this.onClose = action;
+    }
+
     public void close() {
-        this.entityManager.close();
+        try {
+            closeReplica();
+            this.entityManager.close();
+        } finally {
+            if (onClose != null) {
+                onClose.run();
+                onClose = null;
+            }
+        }
     }
 
-    public User updateUser(User userEntity) {
-        EntityTransaction transaction = entityManager.getTransaction();
-        transaction.begin();
-        entityManager.merge(userEntity);
-        transaction.commit();
+    /**
+     * Writes the given attributes of the user, when the session commits if this DAO is enlisted. The
+     * other columns are left as they are in the database.
+     *
+     * @param attributes the changed attributes, among {@code password} and {@code phone}
+     */
+    public User updateUser(User userEntity, String... attributes) {
+        List<String> changed = List.of(attributes);
+        for (String attribute : changed) {
+            if (!UPDATABLE_ATTRIBUTES.containsKey(attribute)) {
+                throw new IllegalArgumentException("Attribute " + attribute + " cannot be updated");
+            }
+        }
+        pinToPrimary();
+        UserWriteTransaction pending = writeTransaction();
+        if (pending != null) {
+            pending.update(userEntity, changed);
+            return userEntity;
+        }
+        timed(Operation.DB_WRITE, () -> {
+            EntityTransaction transaction = entityManager.getTransaction();
+            try {
+                transaction.begin();
+                updateBatch(entityManager, List.of(userEntity), changed);
+                transaction.commit();
+                return null;
+            } catch (RuntimeException e) {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                throw e;
+            }
+        });
+        afterCommit(List.of(userEntity));
         return userEntity;
     }
 
+    /**
+     * Writes the given columns of the users as one JDBC batch, in the current transaction. Hibernate is
+     * bypassed, unlike a bulk JPQL update it does not empty the whole {@code User} region of the second
+     * level cache: the caller evicts the written users once committed, see {@link #afterCommit}.
+     */
+    static void updateBatch(EntityManager entityManager, Collection<User> users, Collection<String> attributes) {
+        StringBuilder sql = new StringBuilder("update business_users set ");
+        for (String attribute : attributes) {
+            if (sql.charAt(sql.length() - 1) != ' ') {
+                sql.append(", ");
+            }
+            sql.append(attribute).append(" = ?");
+        }
+        sql.append(" where id = ?");
+        entityManager.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                for (User user : users) {
+                    int index = 1;
+                    for (String attribute : attributes) {
+                        statement.setObject(index++, UPDATABLE_ATTRIBUTES.get(attribute).apply(user));
+                    }
+                    statement.setInt(index, user.getId());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Loads the user to change from the primary, bypassing the user cache, the second level cache and the replicas.
+     */
+    public User getUserForUpdate(String id) {
+        Integer userId = Integer.parseInt(id);
+        pinToPrimary();
+        if (writeTransaction != null && writeTransaction.getById(userId) != null) {
+            return writeTransaction.getById(userId);
+        }
+        User user = timed(Operation.DB_QUERY, () -> entityManager.find(User.class, userId,
+                Map.of(READ_ONLY_HINT, true, RETRIEVE_MODE_HINT, CacheRetrieveMode.BYPASS)));
+        if (user != null) {
+            entityManager.detach(user);
+        }
+        return user;
+    }
+
+    /**
+     * @return the queue of the current session transaction, null when writes must be committed right away
+     */
+    private UserWriteTransaction writeTransaction() {
+        if (transactionManager == null || !transactionManager.isActive()) {
+            return null;
+        }
+        if (writeTransaction == null || !writeTransaction.isActive()) {
+            writeTransaction = new UserWriteTransaction(entityManager, metrics, this::afterCommit);
+            transactionManager.enlist(writeTransaction);
+        }
+        return writeTransaction;
+    }
+
+    private void afterCommit(Collection<User> users) {
+        if (userCache != null) {
+            users.forEach(user -> userCache.invalidate(user.getId()));
+        }
+        // the updates are sent through JDBC, unseen by the second level cache
+        users.forEach(user -> SecondLevelCache.evict(entityManager.getEntityManagerFactory(), user.getId()));
+    }
+
     public int size() {
-        return entityManager.createNamedQuery("getUserCount", Integer.class).getSingleResult();
+        return read(reader -> reader.createNamedQuery("getUserCount", Long.class).getSingleResult()).intValue();
+    }
+
+    /**
+     * @return the InnoDB row estimate of the users table, null when the statistics are not available
+     */
+    public Long approximateSize() {
+        List<?> rows = read(reader -> reader.createNativeQuery("select table_rows from information_schema.tables " +
+                "where table_schema = database() and table_name = 'business_users'").getResultList());
+        return rows.isEmpty() || rows.get(0) == null ? null : ((Number) rows.get(0)).longValue();
     }
 }
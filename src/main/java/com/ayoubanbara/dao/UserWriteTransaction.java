@@ -0,0 +1,121 @@
+package com.ayoubanbara.dao;
+
+import com.ayoubanbara.metrics.Operation;
+import com.ayoubanbara.metrics.ProviderMetrics;
+import com.ayoubanbara.model.User;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityTransaction;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.models.AbstractKeycloakTransaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Writes of one {@link UserDAO} queued for the lifetime of a Keycloak session transaction.
+ * <p>
+ * Updates are coalesced per user and everything is flushed in a single database transaction when
+ * Keycloak commits, so the statements share one commit. Updates only write the attributes changed in
+ * the session, see {@link UserDAO#updateUser}; the users changing the same attributes are sent as one
+ * JDBC batch. Inserts are sent one by one, Hibernate needs each IDENTITY id back. A Keycloak rollback
+ * drops the queue without touching the database.
+ */
+@Slf4j
+class UserWriteTransaction extends AbstractKeycloakTransaction {
+
+    private final EntityManager entityManager;
+    private final ProviderMetrics metrics;
+    private final Consumer<Collection<User>> afterCommit;
+    private final List<User> pendingCreates = new ArrayList<>();
+    private final Map<Integer, User> pendingUpdates = new LinkedHashMap<>();
+    private final Map<Integer, Set<String>> pendingAttributes = new HashMap<>();
+
+    UserWriteTransaction(EntityManager entityManager, ProviderMetrics metrics, Consumer<Collection<User>> afterCommit) {
+        this.entityManager = entityManager;
+        this.metrics = metrics;
+        this.afterCommit = afterCommit;
+    }
+
+    void create(User user) {
+        pendingCreates.add(user);
+    }
+
+    void update(User user, Collection<String> attributes) {
+        pendingUpdates.put(user.getId(), user);
+        pendingAttributes.computeIfAbsent(user.getId(), id -> new LinkedHashSet<>()).addAll(attributes);
+    }
+
+    /**
+     * @return the pending version of the user, null if it has not been written in this transaction
+     */
+    User getById(Integer id) {
+        return pendingUpdates.get(id);
+    }
+
+    User getByEmail(String email) {
+        for (User user : pendingUpdates.values()) {
+            if (user.getEmail() != null && user.getEmail().equalsIgnoreCase(email)) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    boolean isEmpty() {
+        return pendingCreates.isEmpty() && pendingUpdates.isEmpty();
+    }
+
+    @Override
+    protected void commitImpl() {
+        if (isEmpty()) {
+            return;
+        }
+        List<User> written = metrics == null ? write() : metrics.time(Operation.DB_WRITE, this::write);
+        log.debug("committed {} user writes", written.size());
+        afterCommit.accept(written);
+    }
+
+    private List<User> write() {
+        List<User> written = new ArrayList<>(pendingCreates.size() + pendingUpdates.size());
+        EntityTransaction transaction = entityManager.getTransaction();
+        try {
+            transaction.begin();
+            for (User user : pendingCreates) {
+                entityManager.persist(user);
+                written.add(user);
+            }
+            Map<Set<String>, List<User>> updatesByAttributes = new LinkedHashMap<>();
+            for (User user : pendingUpdates.values()) {
+                updatesByAttributes.computeIfAbsent(pendingAttributes.get(user.getId()), attributes -> new ArrayList<>()).add(user);
+                written.add(user);
+            }
+            updatesByAttributes.forEach((attributes, users) -> UserDAO.updateBatch(entityManager, users, attributes));
+            transaction.commit();
+        } catch (RuntimeException e) {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw e;
+        } finally {
+            pendingCreates.forEach(entityManager::detach);
+            pendingCreates.clear();
+            pendingUpdates.clear();
+            pendingAttributes.clear();
+        }
+        return written;
+    }
+
+    @Override
+    protected void rollbackImpl() {
+        pendingCreates.clear();
+        pendingUpdates.clear();
+        pendingAttributes.clear();
+    }
+}
@@ -0,0 +1,237 @@
+package com.ayoubanbara.datasource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.persistence.EntityManagerFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.cache.CacheManager;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Thread-safe registry of the entity manager factories, keyed by connection name.
+ * <p>
+ * Each factory (and its connection pool) is built exactly once per connection name, outside of the
+ * map so a slow database only delays the callers waiting for that connection. Callers hold a lease on
+ * the connection while they use its entity managers. A connection is retired once the last provider
+ * component sharing it is released, or when its settings change: it leaves the registry, so the next
+ * caller builds a new one, and is closed once its last lease is returned.
+ */
+@Slf4j
+public class EntityManagerFactoryRegistry {
+
+    private final ConcurrentHashMap<String, CompletableFuture<Connection>> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Leases the connection for the given component, building it on first use.
+     * The lease must be returned with {@link Connection#release()}.
+     */
+    public Connection acquire(String connectionName, String componentId, Function<String, Connection> builder) {
+        while (true) {
+            CompletableFuture<Connection> future = connections.get(connectionName);
+            if (future == null) {
+                CompletableFuture<Connection> created = new CompletableFuture<>();
+                future = connections.putIfAbsent(connectionName, created);
+                if (future == null) {
+                    future = created;
+                    build(connectionName, created, builder);
+                }
+            }
+            Connection connection = join(future).retain(componentId);
+            if (connection != null) {
+                return connection;
+            }
+            // retired meanwhile, its replacement is built on the next turn
+            connections.remove(connectionName, future);
+        }
+    }
+
+    private void build(String connectionName, CompletableFuture<Connection> future, Function<String, Connection> builder) {
+        try {
+            future.complete(builder.apply(connectionName));
+        } catch (RuntimeException e) {
+            // the callers waiting for it fail too, the next ones try again
+            connections.remove(connectionName, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static Connection join(CompletableFuture<Connection> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Leases the connection if it is started, without building it nor adding a component.
+     *
+     * @return the leased connection, or null
+     */
+    public Connection lease(String connectionName) {
+        Connection connection = get(connectionName);
+        return connection == null ? null : connection.retain(null);
+    }
+
+    /**
+     * @return the started connection, or null
+     */
+    public Connection get(String connectionName) {
+        CompletableFuture<Connection> future = connectionName == null ? null : connections.get(connectionName);
+        return future == null || !future.isDone() || future.isCompletedExceptionally() ? null : future.join();
+    }
+
+    /**
+     * Drops the reference of the given component, retiring the connection when no component uses it anymore.
+     */
+    public void release(String connectionName, String componentId) {
+        Connection connection = get(connectionName);
+        if (connection != null && connection.removeComponent(componentId)) {
+            evict(connectionName);
+        }
+    }
+
+    /**
+     * Retires the connection regardless of its components, e.g. when its settings changed. It is closed
+     * once the sessions and tasks using it return their lease.
+     */
+    public void evict(String connectionName) {
+        if (connectionName == null) {
+            return;
+        }
+        CompletableFuture<Connection> future = connections.remove(connectionName);
+        if (future != null) {
+            // a connection still being built is retired as soon as it is ready
+            future.thenAccept(Connection::retire);
+        }
+    }
+
+    public void closeAll() {
+        connections.keySet().forEach(this::evict);
+    }
+
+    public static class Connection {
+        private final String name;
+        private final EntityManagerFactory entityManagerFactory;
+        private final HikariDataSource dataSource;
+        private final CacheManager cacheManager;
+        private final ReplicaRouter replicaRouter;
+        private final Set<String> components = new HashSet<>();
+        private int leases;
+        private boolean retired;
+        private boolean closed;
+
+        public Connection(String name, EntityManagerFactory entityManagerFactory, HikariDataSource dataSource) {
+            this(name, entityManagerFactory, dataSource, null);
+        }
+
+        public Connection(String name, EntityManagerFactory entityManagerFactory, HikariDataSource dataSource,
+                          CacheManager cacheManager) {
+            this(name, entityManagerFactory, dataSource, cacheManager, null);
+        }
+
+        public Connection(String name, EntityManagerFactory entityManagerFactory, HikariDataSource dataSource,
+                          CacheManager cacheManager, ReplicaRouter replicaRouter) {
+            this.name = name;
+            this.entityManagerFactory = entityManagerFactory;
+            this.dataSource = dataSource;
+            this.cacheManager = cacheManager;
+            this.replicaRouter = replicaRouter;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public EntityManagerFactory getEntityManagerFactory() {
+            return entityManagerFactory;
+        }
+
+        public HikariDataSource getDataSource() {
+            return dataSource;
+        }
+
+        /**
+         * @return the read replicas of the connection, or null when it has none
+         */
+        public ReplicaRouter getReplicaRouter() {
+            return replicaRouter;
+        }
+
+        public PoolMetricsTracker getPoolMetrics() {
+            return PooledDataSourceFactory.metrics(dataSource);
+        }
+
+        /**
+         * Takes a lease on the connection, for the given component unless null.
+         *
+         * @return this connection, or null once it is retired
+         */
+        public synchronized Connection retain(String componentId) {
+            if (retired) {
+                return null;
+            }
+            leases++;
+            if (componentId != null) {
+                components.add(componentId);
+            }
+            return this;
+        }
+
+        /**
+         * Returns a lease, closing the connection if it is retired and this was the last one.
+         */
+        public void release() {
+            synchronized (this) {
+                leases--;
+                if (!retired || leases > 0 || closed) {
+                    return;
+                }
+                closed = true;
+            }
+            close();
+        }
+
+        /**
+         * @return whether no component uses the connection anymore
+         */
+        synchronized boolean removeComponent(String componentId) {
+            components.remove(componentId);
+            return components.isEmpty();
+        }
+
+        void retire() {
+            synchronized (this) {
+                retired = true;
+                if (leases > 0 || closed) {
+                    return;
+                }
+                closed = true;
+            }
+            close();
+        }
+
+        private void close() {
+            log.info("closing connection {} ({})", name, getPoolMetrics());
+            try {
+                entityManagerFactory.close();
+            } catch (RuntimeException e) {
+                log.warn("failed to close entity manager factory of connection {}", name, e);
+            }
+            if (cacheManager != null) {
+                cacheManager.close();
+            }
+            if (replicaRouter != null) {
+                replicaRouter.close();
+            }
+            dataSource.close();
+        }
+    }
+}
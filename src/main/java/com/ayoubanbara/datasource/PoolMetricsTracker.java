@@ -0,0 +1,95 @@
+package com.ayoubanbara.datasource;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the connection pool statistics needed to size the pool for peak load:
+ * active, idle and waiting connections plus connection acquire latency.
+ */
+public class PoolMetricsTracker implements IMetricsTracker {
+
+    private final String poolName;
+    private final PoolStats poolStats;
+
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+    private final LongAdder usageMillis = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public PoolMetricsTracker(String poolName, PoolStats poolStats) {
+        this.poolName = poolName;
+        this.poolStats = poolStats;
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        acquireCount.increment();
+        acquireNanos.add(elapsedAcquiredNanos);
+        maxAcquireNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+    }
+
+    @Override
+    public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+        usageMillis.add(elapsedBorrowedMillis);
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+        timeouts.increment();
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public int getActiveConnections() {
+        return poolStats.getActiveConnections();
+    }
+
+    public int getIdleConnections() {
+        return poolStats.getIdleConnections();
+    }
+
+    public int getTotalConnections() {
+        return poolStats.getTotalConnections();
+    }
+
+    public int getPendingThreads() {
+        return poolStats.getPendingThreads();
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    public double getAverageAcquireMillis() {
+        long count = acquireCount.sum();
+        return count == 0 ? 0 : (double) acquireNanos.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxAcquireMillis() {
+        return (double) maxAcquireNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getAverageUsageMillis() {
+        long count = acquireCount.sum();
+        return count == 0 ? 0 : (double) usageMillis.sum() / count;
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("pool=%s active=%d idle=%d total=%d waiting=%d acquired=%d avgAcquireMs=%.3f maxAcquireMs=%.3f avgUsageMs=%.3f timeouts=%d",
+                poolName, getActiveConnections(), getIdleConnections(), getTotalConnections(), getPendingThreads(),
+                getAcquireCount(), getAverageAcquireMillis(), getMaxAcquireMillis(), getAverageUsageMillis(), getTimeouts());
+    }
+}
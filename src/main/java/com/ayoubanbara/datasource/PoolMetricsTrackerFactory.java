@@ -0,0 +1,23 @@
+package com.ayoubanbara.datasource;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * Hands the tracker Hikari creates for its pool back to us so the statistics can be reported.
+ */
+public class PoolMetricsTrackerFactory implements MetricsTrackerFactory {
+
+    private volatile PoolMetricsTracker tracker;
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        tracker = new PoolMetricsTracker(poolName, poolStats);
+        return tracker;
+    }
+
+    public PoolMetricsTracker getTracker() {
+        return tracker;
+    }
+}
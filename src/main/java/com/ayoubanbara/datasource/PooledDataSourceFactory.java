@@ -0,0 +1,135 @@
+package com.ayoubanbara.datasource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.keycloak.common.util.MultivaluedHashMap;
+
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_CONNECTION_OTHER_PARAMS;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_DATABASE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_HOST_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_JDBC_URL_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_PASSWORD_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_PORT_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.DB_USERNAME_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.POOL_CONNECTION_TIMEOUT_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.POOL_IDLE_TIMEOUT_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.POOL_MAX_LIFETIME_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.POOL_MAX_SIZE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.POOL_MIN_IDLE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.POOL_PREP_STMT_CACHE_SIZE_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.POOL_VALIDATION_QUERY_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.STREAM_FETCH_SIZE_KEY;
+import static com.ayoubanbara.utils.Helpers.getInt;
+import static com.ayoubanbara.utils.Helpers.isBlank;
+
+/**
+ * Builds the pooled {@link javax.sql.DataSource} handed to Hibernate, so connections are
+ * not managed by Hibernate's built-in (non production) connection provider.
+ */
+public class PooledDataSourceFactory {
+
+    public static final String MYSQL_DRIVER = "com.mysql.cj.jdbc.Driver";
+
+    private PooledDataSourceFactory() {}
+
+    /**
+     * @return the configured JDBC URL, or the MySQL one built from the host, port, database and params
+     */
+    public static String jdbcUrl(MultivaluedHashMap<String, String> config) {
+        String jdbcUrl = config.getFirst(DB_JDBC_URL_KEY);
+        if (!isBlank(jdbcUrl)) {
+            return jdbcUrl;
+        }
+        return String.format("jdbc:mysql://%s:%s/%s?%s",
+                config.getFirst(DB_HOST_KEY),
+                config.getFirst(DB_PORT_KEY),
+                config.getFirst(DB_DATABASE_KEY),
+                config.getFirst(DB_CONNECTION_OTHER_PARAMS)
+        );
+    }
+
+    public static HikariDataSource create(String poolName, MultivaluedHashMap<String, String> config) {
+        return create(poolName, config, true);
+    }
+
+    /**
+     * Builds the pool of a read replica, with the settings of the primary. The pool starts even if the
+     * replica cannot be reached, its health check then takes it out of the rotation.
+     *
+     * @param endpoint {@code host}, {@code host:port} on the database of the primary, or a JDBC URL
+     */
+    public static HikariDataSource createReplica(String poolName, MultivaluedHashMap<String, String> config, String endpoint) {
+        MultivaluedHashMap<String, String> replicaConfig = new MultivaluedHashMap<>(config);
+        if (endpoint.startsWith("jdbc:")) {
+            replicaConfig.putSingle(DB_JDBC_URL_KEY, endpoint);
+        } else {
+            int separator = endpoint.lastIndexOf(':');
+            replicaConfig.remove(DB_JDBC_URL_KEY);
+            replicaConfig.putSingle(DB_HOST_KEY, separator < 0 ? endpoint : endpoint.substring(0, separator));
+            if (separator >= 0) {
+                replicaConfig.putSingle(DB_PORT_KEY, endpoint.substring(separator + 1));
+            }
+        }
+        return create(poolName, replicaConfig, false);
+    }
+
+    private static HikariDataSource create(String poolName, MultivaluedHashMap<String, String> config, boolean failFast) {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setPoolName(poolName);
+        String jdbcUrl = jdbcUrl(config);
+        boolean mysql = jdbcUrl.startsWith("jdbc:mysql:");
+        if (mysql) {
+            hikariConfig.setDriverClassName(MYSQL_DRIVER);
+        }
+        hikariConfig.setJdbcUrl(jdbcUrl);
+        hikariConfig.setUsername(config.getFirst(DB_USERNAME_KEY));
+        hikariConfig.setPassword(config.getFirst(DB_PASSWORD_KEY));
+        hikariConfig.setAutoCommit(true);
+        if (!failFast) {
+            hikariConfig.setInitializationFailTimeout(-1);
+        }
+
+        hikariConfig.setMinimumIdle(getInt(config, POOL_MIN_IDLE_KEY, 2));
+        hikariConfig.setMaximumPoolSize(getInt(config, POOL_MAX_SIZE_KEY, 10));
+        hikariConfig.setConnectionTimeout(getInt(config, POOL_CONNECTION_TIMEOUT_KEY, 30000));
+        hikariConfig.setIdleTimeout(getInt(config, POOL_IDLE_TIMEOUT_KEY, 600000));
+        hikariConfig.setMaxLifetime(getInt(config, POOL_MAX_LIFETIME_KEY, 1800000));
+        String validationQuery = config.getFirst(POOL_VALIDATION_QUERY_KEY);
+        if (!isBlank(validationQuery)) {
+            hikariConfig.setConnectionTestQuery(validationQuery);
+        }
+
+        if (mysql) {
+            addMySqlProperties(hikariConfig, config);
+        }
+
+        hikariConfig.setMetricsTrackerFactory(new PoolMetricsTrackerFactory());
+        hikariConfig.setRegisterMbeans(true);
+        return new HikariDataSource(hikariConfig);
+    }
+
+    /**
+     * Connector/J settings, other drivers may reject unknown connection properties.
+     */
+    private static void addMySqlProperties(HikariConfig hikariConfig, MultivaluedHashMap<String, String> config) {
+        int prepStmtCacheSize = getInt(config, POOL_PREP_STMT_CACHE_SIZE_KEY, 250);
+        if (prepStmtCacheSize > 0) {
+            hikariConfig.addDataSourceProperty("cachePrepStmts", "true");
+            hikariConfig.addDataSourceProperty("prepStmtCacheSize", prepStmtCacheSize);
+            hikariConfig.addDataSourceProperty("prepStmtCacheSqlLimit", 2048);
+            hikariConfig.addDataSourceProperty("useServerPrepStmts", "true");
+        }
+
+        // lets Connector/J send a JDBC batch as multi-row statements
+        hikariConfig.addDataSourceProperty("rewriteBatchedStatements", "true");
+
+        if (getInt(config, STREAM_FETCH_SIZE_KEY, 500) > 0) {
+            // Connector/J only honours the fetch size through a server side cursor
+            hikariConfig.addDataSourceProperty("useCursorFetch", "true");
+        }
+    }
+
+    public static PoolMetricsTracker metrics(HikariDataSource dataSource) {
+        return ((PoolMetricsTrackerFactory) dataSource.getMetricsTrackerFactory()).getTracker();
+    }
+}
@@ -0,0 +1,221 @@
+package com.ayoubanbara.datasource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.exception.JDBCConnectionException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Read replicas of a connection, each with its own pool and entity manager factory, and the choice
+ * of the replica serving the reads of a session.
+ * <p>
+ * Replicas are checked in the background, they join the rotation after their first successful check
+ * and leave it while their check fails. When none is healthy, {@link #select()} returns null and
+ * reads go to the primary.
+ */
+@Slf4j
+public class ReplicaRouter {
+
+    public enum Balancing {
+        /**
+         * Healthy replicas in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * The healthy replica with the lowest moving average of its query and health check latencies.
+         */
+        LEAST_LATENCY;
+
+        public static Balancing of(String value) {
+            return value == null || value.isBlank() ? ROUND_ROBIN : valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final int VALID_TIMEOUT_SECONDS = 5;
+
+    private final List<Replica> replicas;
+    private final Balancing balancing;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService healthChecks;
+
+    public ReplicaRouter(String connectionName, List<Replica> replicas, Balancing balancing, long healthCheckSeconds) {
+        this.replicas = List.copyOf(replicas);
+        this.balancing = balancing;
+        this.healthChecks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-provider-replicas-" + connectionName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecks.scheduleWithFixedDelay(() -> this.replicas.forEach(Replica::check),
+                0, healthCheckSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the replica for the reads of a new session, null when every replica is down
+     */
+    public Replica select() {
+        return balancing == Balancing.LEAST_LATENCY ? leastLatency() : roundRobin();
+    }
+
+    private Replica roundRobin() {
+        int size = replicas.size();
+        int first = Math.floorMod(next.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((first + i) % size);
+            if (replica.isHealthy()) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    private Replica leastLatency() {
+        Replica selected = null;
+        for (Replica replica : replicas) {
+            if (replica.isHealthy() && (selected == null || replica.latencyNanos < selected.latencyNanos)) {
+                selected = replica;
+            }
+        }
+        return selected;
+    }
+
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return whether the failure means the database could not be reached, rather than a bad statement
+     */
+    public static boolean isConnectionFailure(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof JDBCConnectionException || cause instanceof SQLTransientConnectionException
+                    || cause instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void close() {
+        healthChecks.shutdownNow();
+        replicas.forEach(Replica::close);
+    }
+
+    @Override
+    public String toString() {
+        return replicas.stream().map(Replica::toString).collect(Collectors.joining(", ", "balancing=" + balancing + " [", "]"));
+    }
+
+    public static class Replica {
+        private final String name;
+        private final HikariDataSource dataSource;
+        private final EntityManagerFactory entityManagerFactory;
+        private final LongAdder sessions = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private volatile boolean healthy;
+        private volatile boolean checked;
+        private volatile long latencyNanos;
+
+        public Replica(String name, HikariDataSource dataSource, EntityManagerFactory entityManagerFactory) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.entityManagerFactory = entityManagerFactory;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Opens the entity manager of a session reading from this replica.
+         */
+        public EntityManager openEntityManager() {
+            sessions.increment();
+            return entityManagerFactory.createEntityManager();
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public double getLatencyMillis() {
+            return latencyNanos / 1e6;
+        }
+
+        public long getSessions() {
+            return sessions.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public void recordLatency(long nanos) {
+            long average = latencyNanos;
+            // racing updates only lose a sample
+            latencyNanos = average == 0 ? nanos : average + (nanos - average) / 8;
+        }
+
+        /**
+         * Takes the replica out of the rotation until its next successful health check.
+         */
+        public void markDown(Throwable cause) {
+            failures.increment();
+            if (healthy || !checked) {
+                healthy = false;
+                log.warn("replica {} is down, reading from the primary until it recovers", name, cause);
+            }
+        }
+
+        void check() {
+            long start = System.nanoTime();
+            try (Connection connection = dataSource.getConnection()) {
+                if (!connection.isValid(VALID_TIMEOUT_SECONDS)) {
+                    throw new SQLException("connection is not valid");
+                }
+                recordLatency(System.nanoTime() - start);
+                if (!healthy) {
+                    healthy = true;
+                    log.info("replica {} is up", name);
+                }
+            } catch (SQLException | RuntimeException e) {
+                markDown(e);
+            } finally {
+                checked = true;
+            }
+        }
+
+        public PoolMetricsTracker getPoolMetrics() {
+            return PooledDataSourceFactory.metrics(dataSource);
+        }
+
+        public void close() {
+            try {
+                entityManagerFactory.close();
+            } catch (RuntimeException e) {
+                log.warn("failed to close entity manager factory of replica {}", name, e);
+            }
+            dataSource.close();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s healthy=%s latencyMs=%.3f sessions=%d failures=%d",
+                    name, healthy, latencyNanos / 1e6, sessions.sum(), failures.sum());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.ayoubanbara.datasource;
+
+import com.ayoubanbara.model.User;
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.keycloak.common.util.MultivaluedHashMap;
+
+import javax.cache.CacheManager;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static com.ayoubanbara.CustomUserStorageProviderFactory.L2_CACHE_ENABLED_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.L2_CACHE_MAX_ENTRIES_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.L2_CACHE_TTL_SECONDS_KEY;
+import static com.ayoubanbara.utils.Helpers.getBoolean;
+import static com.ayoubanbara.utils.Helpers.getInt;
+
+/**
+ * Hibernate second-level and query cache of a connection, held in local Caffeine caches bounded
+ * in size and time.
+ * <p>
+ * Writes made through Hibernate keep the regions consistent: {@code User} is cached read-write and
+ * any update of {@code business_users} invalidates the cached query results. Changes made by other
+ * systems are only seen once the entries expire, or when evicted, see {@link #evict}.
+ */
+public class SecondLevelCache {
+
+    public static final String USER_REGION = User.class.getName();
+
+    private SecondLevelCache() {}
+
+    /**
+     * Creates the regions and adds the Hibernate settings using them to {@code properties}.
+     *
+     * @return the cache manager to close with the connection, null when the cache is disabled
+     */
+    public static CacheManager configure(String connectionName, MultivaluedHashMap<String, String> config,
+                                         Map<String, Object> properties) {
+        if (!getBoolean(config, L2_CACHE_ENABLED_KEY, false)) {
+            disable(properties);
+            return null;
+        }
+        CaffeineCachingProvider cachingProvider = new CaffeineCachingProvider();
+        CacheManager cacheManager = cachingProvider.getCacheManager(URI.create("user-provider:" + connectionName),
+                SecondLevelCache.class.getClassLoader(), new Properties());
+        long maxEntries = getInt(config, L2_CACHE_MAX_ENTRIES_KEY, 10000);
+        long ttlNanos = TimeUnit.SECONDS.toNanos(getInt(config, L2_CACHE_TTL_SECONDS_KEY, 300));
+        cacheManager.createCache(USER_REGION, region(maxEntries, ttlNanos));
+        cacheManager.createCache(RegionFactory.DEFAULT_QUERY_RESULTS_REGION_UNQUALIFIED_NAME, region(maxEntries, ttlNanos));
+        // never evicted, the query results would be served stale otherwise
+        cacheManager.createCache(RegionFactory.DEFAULT_UPDATE_TIMESTAMPS_REGION_UNQUALIFIED_NAME, region(-1, -1));
+
+        properties.put("hibernate.cache.use_second_level_cache", "true");
+        properties.put("hibernate.cache.use_query_cache", "true");
+        properties.put("hibernate.cache.region.factory_class", ConfigSettings.SIMPLE_FACTORY_NAME);
+        properties.put(ConfigSettings.CACHE_MANAGER, cacheManager);
+        properties.put(ConfigSettings.MISSING_CACHE_STRATEGY, "fail");
+        properties.put("hibernate.generate_statistics", "true");
+        return cacheManager;
+    }
+
+    /**
+     * Hibernate otherwise enables the cache by itself, hibernate-jcache being on the classpath.
+     */
+    public static void disable(Map<String, Object> properties) {
+        properties.put("hibernate.cache.use_second_level_cache", "false");
+        properties.put("hibernate.cache.use_query_cache", "false");
+    }
+
+    private static CaffeineConfiguration<Object, Object> region(long maxEntries, long ttlNanos) {
+        CaffeineConfiguration<Object, Object> configuration = new CaffeineConfiguration<>();
+        if (maxEntries >= 0) {
+            configuration.setMaximumSize(OptionalLong.of(maxEntries));
+        }
+        if (ttlNanos >= 0) {
+            configuration.setExpireAfterWrite(OptionalLong.of(ttlNanos));
+        }
+        // Hibernate caches disassembled state, copying it through serialization on each access is wasted
+        configuration.setStoreByValue(false);
+        configuration.setStatisticsEnabled(true);
+        return configuration;
+    }
+
+    /**
+     * Drops a user changed outside of Hibernate, along with the cached query results.
+     */
+    public static void evict(EntityManagerFactory entityManagerFactory, Integer userId) {
+        SessionFactory sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
+        if (sessionFactory.getSessionFactoryOptions().isSecondLevelCacheEnabled()) {
+            sessionFactory.getCache().evictEntityData(User.class, userId);
+            sessionFactory.getCache().evictDefaultQueryRegion();
+        }
+    }
+
+    /**
+     * @return the hit, miss and put counts per region, empty when the cache is disabled
+     */
+    public static Map<String, CacheRegionStatistics> statistics(EntityManagerFactory entityManagerFactory) {
+        Map<String, CacheRegionStatistics> regions = new LinkedHashMap<>();
+        SessionFactory sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
+        if (sessionFactory.getSessionFactoryOptions().isSecondLevelCacheEnabled()) {
+            Statistics statistics = sessionFactory.getStatistics();
+            regions.put(USER_REGION, statistics.getDomainDataRegionStatistics(USER_REGION));
+            regions.put(RegionFactory.DEFAULT_QUERY_RESULTS_REGION_UNQUALIFIED_NAME,
+                    statistics.getQueryRegionStatistics(RegionFactory.DEFAULT_QUERY_RESULTS_REGION_UNQUALIFIED_NAME));
+        }
+        return regions;
+    }
+}
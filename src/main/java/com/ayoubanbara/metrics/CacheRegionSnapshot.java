@@ -0,0 +1,32 @@
+package com.ayoubanbara.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a second level cache region, exposed through JMX as composite data.
+ */
+public class CacheRegionSnapshot {
+
+    private final long hits;
+    private final long misses;
+    private final long puts;
+
+    @ConstructorProperties({"hits", "misses", "puts"})
+    public CacheRegionSnapshot(long hits, long misses, long puts) {
+        this.hits = hits;
+        this.misses = misses;
+        this.puts = puts;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getPuts() {
+        return puts;
+    }
+}
@@ -0,0 +1,34 @@
+package com.ayoubanbara.metrics;
+
+import com.ayoubanbara.sync.UserChangeWatcher;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a {@link UserChangeWatcher}, exposed through JMX as composite data.
+ */
+public class ChangeWatcherSnapshot {
+
+    private final long polls;
+    private final long evictions;
+    private final double lastPollMillis;
+
+    @ConstructorProperties({"polls", "evictions", "lastPollMillis"})
+    public ChangeWatcherSnapshot(long polls, long evictions, double lastPollMillis) {
+        this.polls = polls;
+        this.evictions = evictions;
+        this.lastPollMillis = lastPollMillis;
+    }
+
+    public long getPolls() {
+        return polls;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public double getLastPollMillis() {
+        return lastPollMillis;
+    }
+}
@@ -0,0 +1,258 @@
+package com.ayoubanbara.metrics;
+
+import com.ayoubanbara.ComponentResources;
+import com.ayoubanbara.beans.PasswordVerifier;
+import com.ayoubanbara.cache.NegativeLookupFilter;
+import com.ayoubanbara.cache.UserCache;
+import com.ayoubanbara.cache.UserCountProvider;
+import com.ayoubanbara.cache.VerifiedCredentialCache;
+import com.ayoubanbara.datasource.PoolMetricsTracker;
+import com.ayoubanbara.datasource.ReplicaRouter;
+import com.ayoubanbara.search.NgramIndex;
+import com.ayoubanbara.sync.UserChangeWatcher;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.stat.CacheRegionStatistics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * JMX view of one provider component, registered as
+ * {@code com.ayoubanbara:type=UserStorageProvider,component=<id>}: operation latencies, slow traces,
+ * caches, and the pools of the shared connection and its replicas. Values are read when queried, a
+ * feature disabled for the component or a connection not started yet reads as null, {@code disabled}
+ * or empty.
+ */
+@Slf4j
+public class ComponentStatistics implements ComponentStatisticsMXBean {
+
+    private static final String DISABLED = "disabled";
+
+    private final String componentName;
+    private final ComponentResources resources;
+    private final Supplier<PoolMetricsTracker> poolMetrics;
+    private final Supplier<Map<String, CacheRegionStatistics>> cacheStatistics;
+    private final Supplier<ReplicaRouter> replicaRouter;
+    private ObjectName objectName;
+
+    public ComponentStatistics(String componentName, ComponentResources resources, Supplier<PoolMetricsTracker> poolMetrics,
+                               Supplier<Map<String, CacheRegionStatistics>> cacheStatistics, Supplier<ReplicaRouter> replicaRouter) {
+        this.componentName = componentName;
+        this.resources = resources;
+        this.poolMetrics = poolMetrics;
+        this.cacheStatistics = cacheStatistics;
+        this.replicaRouter = replicaRouter;
+    }
+
+    public void register(String componentId) {
+        try {
+            objectName = new ObjectName("com.ayoubanbara:type=UserStorageProvider,component=" + ObjectName.quote(componentId));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            log.warn("failed to register the statistics of component {}", componentId, e);
+            objectName = null;
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("failed to unregister {}", objectName, e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public String getComponentName() {
+        return componentName;
+    }
+
+    @Override
+    public List<OperationSnapshot> getOperations() {
+        return resources.getMetrics().snapshot();
+    }
+
+    @Override
+    public PoolSnapshot getConnectionPoolStatistics() {
+        return snapshot(poolMetrics.get());
+    }
+
+    @Override
+    public String getConnectionPool() {
+        return describe(poolMetrics.get());
+    }
+
+    @Override
+    public List<ReplicaSnapshot> getReadReplicaStatistics() {
+        ReplicaRouter router = replicaRouter.get();
+        if (router == null) {
+            return List.of();
+        }
+        List<ReplicaSnapshot> replicas = new ArrayList<>();
+        for (ReplicaRouter.Replica replica : router.getReplicas()) {
+            replicas.add(new ReplicaSnapshot(replica.getName(), replica.isHealthy(), replica.getLatencyMillis(),
+                    replica.getSessions(), replica.getFailures(), snapshot(replica.getPoolMetrics())));
+        }
+        return replicas;
+    }
+
+    @Override
+    public List<String> getReadReplicas() {
+        ReplicaRouter router = replicaRouter.get();
+        if (router == null) {
+            return List.of();
+        }
+        List<String> replicas = new ArrayList<>();
+        for (ReplicaRouter.Replica replica : router.getReplicas()) {
+            replicas.add(replica + " " + replica.getPoolMetrics());
+        }
+        return replicas;
+    }
+
+    @Override
+    public Map<String, CacheRegionSnapshot> getSecondLevelCacheStatistics() {
+        Map<String, CacheRegionSnapshot> regions = new LinkedHashMap<>();
+        cacheStatistics.get().forEach((region, statistics) -> regions.put(region, new CacheRegionSnapshot(
+                statistics.getHitCount(), statistics.getMissCount(), statistics.getPutCount())));
+        return regions;
+    }
+
+    @Override
+    public Map<String, String> getSecondLevelCache() {
+        Map<String, String> regions = new LinkedHashMap<>();
+        cacheStatistics.get().forEach((region, statistics) -> regions.put(region, String.format("hits=%d misses=%d puts=%d",
+                statistics.getHitCount(), statistics.getMissCount(), statistics.getPutCount())));
+        return regions;
+    }
+
+    @Override
+    public UserCacheSnapshot getUserCacheStatistics() {
+        UserCache cache = resources.getUserCache();
+        return cache == null ? null
+                : new UserCacheSnapshot(cache.size(), cache.getHits(), cache.getMisses(), cache.getEvictions());
+    }
+
+    @Override
+    public String getUserCache() {
+        return describe(resources.getUserCache());
+    }
+
+    @Override
+    public NegativeLookupFilterSnapshot getNegativeLookupFilterStatistics() {
+        NegativeLookupFilter filter = resources.getNegativeLookupFilter();
+        return filter == null ? null : new NegativeLookupFilterSnapshot(filter.getEntries(), filter.getBitCount(),
+                filter.getHashFunctions(), filter.getRejected(), filter.getPassed(), filter.getFalsePositives(),
+                filter.getObservedFalsePositiveRate(), filter.getExpectedFalsePositiveRate(), filter.getRebuilds(),
+                filter.getLastRebuildMillis(), filter.getLastRefreshMillis());
+    }
+
+    @Override
+    public String getNegativeLookupFilter() {
+        return describe(resources.getNegativeLookupFilter());
+    }
+
+    @Override
+    public PasswordVerifierSnapshot getPasswordVerifierStatistics() {
+        PasswordVerifier verifier = resources.getPasswordVerifier();
+        return verifier == null ? null : new PasswordVerifierSnapshot(verifier.getActiveVerifications(),
+                verifier.getQueueDepth(), verifier.getMaxQueueDepth(), verifier.getVerifications(), verifier.getRejected(),
+                verifier.getTimedOut(), verifier.getAverageHashMillis(), verifier.getMaxHashMillis());
+    }
+
+    @Override
+    public String getPasswordVerifier() {
+        return describe(resources.getPasswordVerifier());
+    }
+
+    @Override
+    public VerifiedCredentialCacheSnapshot getVerifiedCredentialCacheStatistics() {
+        VerifiedCredentialCache cache = resources.getVerifiedCredentialCache();
+        return cache == null ? null
+                : new VerifiedCredentialCacheSnapshot(cache.size(), cache.getHits(), cache.getMisses(), cache.getSavedMillis());
+    }
+
+    @Override
+    public String getVerifiedCredentialCache() {
+        return describe(resources.getVerifiedCredentialCache());
+    }
+
+    @Override
+    public UserCountSnapshot getUserCountStatistics() {
+        UserCountProvider provider = resources.getUserCountProvider();
+        return provider == null ? null : new UserCountSnapshot(provider.getMode().name(), provider.getRefreshes(),
+                provider.getAverageRefreshMillis(), provider.getLastRefreshMillis(), provider.getMaxRefreshMillis(),
+                provider.getAgeSeconds());
+    }
+
+    @Override
+    public String getUserCount() {
+        return describe(resources.getUserCountProvider());
+    }
+
+    @Override
+    public NgramIndexSnapshot getNgramIndexStatistics() {
+        NgramIndex index = resources.getNgramIndex();
+        return index == null ? null : new NgramIndexSnapshot(index.size(), index.getSearches(), index.getFallbacks(),
+                index.getRebuilds(), index.getLastRefreshMillis());
+    }
+
+    @Override
+    public String getNgramIndex() {
+        return describe(resources.getNgramIndex());
+    }
+
+    @Override
+    public ChangeWatcherSnapshot getChangeWatcherStatistics() {
+        UserChangeWatcher watcher = resources.getChangeWatcher();
+        return watcher == null ? null
+                : new ChangeWatcherSnapshot(watcher.getPolls(), watcher.getEvictions(), watcher.getLastPollMillis());
+    }
+
+    @Override
+    public String getChangeWatcher() {
+        return describe(resources.getChangeWatcher());
+    }
+
+    @Override
+    public TracerSnapshot getTracerStatistics() {
+        Tracer tracer = resources.getTracer();
+        return tracer == null ? null
+                : new TracerSnapshot(tracer.getTraceCount(), tracer.getSlowTraceCount(), tracer.getThresholdMillis());
+    }
+
+    @Override
+    public String getTracer() {
+        return describe(resources.getTracer());
+    }
+
+    @Override
+    public List<String> getSlowTraces() {
+        Tracer tracer = resources.getTracer();
+        return tracer == null ? List.of() : tracer.getSlowTraces();
+    }
+
+    private static PoolSnapshot snapshot(PoolMetricsTracker pool) {
+        return pool == null ? null : new PoolSnapshot(pool.getPoolName(), pool.getActiveConnections(),
+                pool.getIdleConnections(), pool.getTotalConnections(), pool.getPendingThreads(), pool.getAcquireCount(),
+                pool.getAverageAcquireMillis(), pool.getMaxAcquireMillis(), pool.getAverageUsageMillis(), pool.getTimeouts());
+    }
+
+    private static String describe(Object metrics) {
+        return metrics == null ? DISABLED : metrics.toString();
+    }
+}
@@ -0,0 +1,75 @@
+package com.ayoubanbara.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of one provider component, registered as
+ * {@code com.ayoubanbara:type=UserStorageProvider,component=<component id>}. Each feature is exposed as
+ * composite data with numeric items, and as a one line summary for reading by hand. Features disabled
+ * for the component report null composite data and a {@code disabled} summary.
+ */
+public interface ComponentStatisticsMXBean {
+
+    String getComponentName();
+
+    /**
+     * @return calls, errors and latency percentiles of the SPI methods, and of the database and hashing work
+     */
+    List<OperationSnapshot> getOperations();
+
+    PoolSnapshot getConnectionPoolStatistics();
+
+    String getConnectionPool();
+
+    /**
+     * @return the health, latency, sessions served and pool of each read replica, empty without replicas
+     */
+    List<ReplicaSnapshot> getReadReplicaStatistics();
+
+    List<String> getReadReplicas();
+
+    /**
+     * @return hits, misses and puts per second level cache region
+     */
+    Map<String, CacheRegionSnapshot> getSecondLevelCacheStatistics();
+
+    Map<String, String> getSecondLevelCache();
+
+    UserCacheSnapshot getUserCacheStatistics();
+
+    String getUserCache();
+
+    NegativeLookupFilterSnapshot getNegativeLookupFilterStatistics();
+
+    String getNegativeLookupFilter();
+
+    PasswordVerifierSnapshot getPasswordVerifierStatistics();
+
+    String getPasswordVerifier();
+
+    VerifiedCredentialCacheSnapshot getVerifiedCredentialCacheStatistics();
+
+    String getVerifiedCredentialCache();
+
+    UserCountSnapshot getUserCountStatistics();
+
+    String getUserCount();
+
+    NgramIndexSnapshot getNgramIndexStatistics();
+
+    String getNgramIndex();
+
+    ChangeWatcherSnapshot getChangeWatcherStatistics();
+
+    String getChangeWatcher();
+
+    TracerSnapshot getTracerStatistics();
+
+    String getTracer();
+
+    /**
+     * @return the last sessions slower than the trace threshold, most recent first
+     */
+    List<String> getSlowTraces();
+}
@@ -0,0 +1,86 @@
+package com.ayoubanbara.metrics;
+
+import com.ayoubanbara.cache.NegativeLookupFilter;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a {@link NegativeLookupFilter}, exposed through JMX as composite data.
+ */
+public class NegativeLookupFilterSnapshot {
+
+    private final long entries;
+    private final long bits;
+    private final int hashFunctions;
+    private final long rejected;
+    private final long passed;
+    private final long falsePositives;
+    private final double observedFalsePositiveRate;
+    private final double expectedFalsePositiveRate;
+    private final long rebuilds;
+    private final long lastRebuildMillis;
+    private final long lastRefreshMillis;
+
+    @ConstructorProperties({"entries", "bits", "hashFunctions", "rejected", "passed", "falsePositives",
+            "observedFalsePositiveRate", "expectedFalsePositiveRate", "rebuilds", "lastRebuildMillis", "lastRefreshMillis"})
+    public NegativeLookupFilterSnapshot(long entries, long bits, int hashFunctions, long rejected, long passed,
+                                        long falsePositives, double observedFalsePositiveRate,
+                                        double expectedFalsePositiveRate, long rebuilds, long lastRebuildMillis,
+                                        long lastRefreshMillis) {
+        this.entries = entries;
+        this.bits = bits;
+        this.hashFunctions = hashFunctions;
+        this.rejected = rejected;
+        this.passed = passed;
+        this.falsePositives = falsePositives;
+        this.observedFalsePositiveRate = observedFalsePositiveRate;
+        this.expectedFalsePositiveRate = expectedFalsePositiveRate;
+        this.rebuilds = rebuilds;
+        this.lastRebuildMillis = lastRebuildMillis;
+        this.lastRefreshMillis = lastRefreshMillis;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getBits() {
+        return bits;
+    }
+
+    public int getHashFunctions() {
+        return hashFunctions;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getPassed() {
+        return passed;
+    }
+
+    public long getFalsePositives() {
+        return falsePositives;
+    }
+
+    public double getObservedFalsePositiveRate() {
+        return observedFalsePositiveRate;
+    }
+
+    public double getExpectedFalsePositiveRate() {
+        return expectedFalsePositiveRate;
+    }
+
+    public long getRebuilds() {
+        return rebuilds;
+    }
+
+    public long getLastRebuildMillis() {
+        return lastRebuildMillis;
+    }
+
+    public long getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+}
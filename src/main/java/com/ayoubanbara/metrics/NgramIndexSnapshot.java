@@ -0,0 +1,46 @@
+package com.ayoubanbara.metrics;
+
+import com.ayoubanbara.search.NgramIndex;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a {@link NgramIndex}, exposed through JMX as composite data.
+ */
+public class NgramIndexSnapshot {
+
+    private final int entries;
+    private final long searches;
+    private final long fallbacks;
+    private final long rebuilds;
+    private final long lastRefreshMillis;
+
+    @ConstructorProperties({"entries", "searches", "fallbacks", "rebuilds", "lastRefreshMillis"})
+    public NgramIndexSnapshot(int entries, long searches, long fallbacks, long rebuilds, long lastRefreshMillis) {
+        this.entries = entries;
+        this.searches = searches;
+        this.fallbacks = fallbacks;
+        this.rebuilds = rebuilds;
+        this.lastRefreshMillis = lastRefreshMillis;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public long getSearches() {
+        return searches;
+    }
+
+    public long getFallbacks() {
+        return fallbacks;
+    }
+
+    public long getRebuilds() {
+        return rebuilds;
+    }
+
+    public long getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+}
@@ -0,0 +1,31 @@
+package com.ayoubanbara.metrics;
+
+/**
+ * Operations timed by {@link ProviderMetrics}: the SPI methods of the provider, and the database
+ * and password hashing work they are made of.
+ */
+public enum Operation {
+    GET_USER_BY_ID("getUserById"),
+    GET_USER_BY_EMAIL("getUserByEmail"),
+    GET_USER_BY_USERNAME("getUserByUsername"),
+    GET_USERS("getUsers"),
+    SEARCH_FOR_USER("searchForUser"),
+    GET_GROUP_MEMBERS("getGroupMembers"),
+    GET_USERS_COUNT("getUsersCount"),
+    IS_VALID("isValid"),
+    UPDATE_CREDENTIAL("updateCredential"),
+    DB_QUERY("db.query"),
+    DB_WRITE("db.write"),
+    HASH_VERIFY("hash.verify"),
+    HASH_ENCODE("hash.encode");
+
+    private final String metricName;
+
+    Operation(String metricName) {
+        this.metricName = metricName;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+}
@@ -0,0 +1,69 @@
+package com.ayoubanbara.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of an {@link OperationStats}, exposed through JMX as composite data.
+ */
+public class OperationSnapshot {
+
+    private final String name;
+    private final long calls;
+    private final long errors;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p95Millis;
+    private final double p99Millis;
+    private final double maxMillis;
+
+    @ConstructorProperties({"name", "calls", "errors", "meanMillis", "p50Millis", "p95Millis", "p99Millis", "maxMillis"})
+    public OperationSnapshot(String name, long calls, long errors, double meanMillis, double p50Millis,
+                             double p95Millis, double p99Millis, double maxMillis) {
+        this.name = name;
+        this.calls = calls;
+        this.errors = errors;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p95Millis = p95Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP95Millis() {
+        return p95Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s calls=%d errors=%d meanMs=%.3f p50Ms=%.3f p95Ms=%.3f p99Ms=%.3f maxMs=%.3f",
+                name, calls, errors, meanMillis, p50Millis, p95Millis, p99Millis, maxMillis);
+    }
+}
@@ -0,0 +1,30 @@
+package com.ayoubanbara.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calls, errors and latency of one {@link Operation}.
+ */
+public class OperationStats {
+
+    private final Operation operation;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+
+    OperationStats(Operation operation) {
+        this.operation = operation;
+    }
+
+    void record(long nanos, boolean failed) {
+        latency.record(nanos);
+        if (failed) {
+            errors.increment();
+        }
+    }
+
+    public OperationSnapshot snapshot() {
+        return new OperationSnapshot(operation.getMetricName(), latency.getCount(), errors.sum(), latency.getMeanMillis(),
+                latency.getPercentileMillis(50), latency.getPercentileMillis(95), latency.getPercentileMillis(99),
+                latency.getMaxMillis());
+    }
+}
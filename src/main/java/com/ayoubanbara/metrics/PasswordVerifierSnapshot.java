@@ -0,0 +1,66 @@
+package com.ayoubanbara.metrics;
+
+import com.ayoubanbara.beans.PasswordVerifier;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a {@link PasswordVerifier}, exposed through JMX as composite data.
+ */
+public class PasswordVerifierSnapshot {
+
+    private final int activeVerifications;
+    private final int queueDepth;
+    private final int maxQueueDepth;
+    private final long verifications;
+    private final long rejected;
+    private final long timedOut;
+    private final double averageHashMillis;
+    private final double maxHashMillis;
+
+    @ConstructorProperties({"activeVerifications", "queueDepth", "maxQueueDepth", "verifications", "rejected",
+            "timedOut", "averageHashMillis", "maxHashMillis"})
+    public PasswordVerifierSnapshot(int activeVerifications, int queueDepth, int maxQueueDepth, long verifications,
+                                    long rejected, long timedOut, double averageHashMillis, double maxHashMillis) {
+        this.activeVerifications = activeVerifications;
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.verifications = verifications;
+        this.rejected = rejected;
+        this.timedOut = timedOut;
+        this.averageHashMillis = averageHashMillis;
+        this.maxHashMillis = maxHashMillis;
+    }
+
+    public int getActiveVerifications() {
+        return activeVerifications;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getVerifications() {
+        return verifications;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getTimedOut() {
+        return timedOut;
+    }
+
+    public double getAverageHashMillis() {
+        return averageHashMillis;
+    }
+
+    public double getMaxHashMillis() {
+        return maxHashMillis;
+    }
+}
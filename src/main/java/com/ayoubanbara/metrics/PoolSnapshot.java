@@ -0,0 +1,79 @@
+package com.ayoubanbara.metrics;
+
+import com.ayoubanbara.datasource.PoolMetricsTracker;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a {@link PoolMetricsTracker}, exposed through JMX as composite data.
+ */
+public class PoolSnapshot {
+
+    private final String pool;
+    private final int activeConnections;
+    private final int idleConnections;
+    private final int totalConnections;
+    private final int pendingThreads;
+    private final long acquireCount;
+    private final double averageAcquireMillis;
+    private final double maxAcquireMillis;
+    private final double averageUsageMillis;
+    private final long timeouts;
+
+    @ConstructorProperties({"pool", "activeConnections", "idleConnections", "totalConnections", "pendingThreads",
+            "acquireCount", "averageAcquireMillis", "maxAcquireMillis", "averageUsageMillis", "timeouts"})
+    public PoolSnapshot(String pool, int activeConnections, int idleConnections, int totalConnections,
+                        int pendingThreads, long acquireCount, double averageAcquireMillis,
+                        double maxAcquireMillis, double averageUsageMillis, long timeouts) {
+        this.pool = pool;
+        this.activeConnections = activeConnections;
+        this.idleConnections = idleConnections;
+        this.totalConnections = totalConnections;
+        this.pendingThreads = pendingThreads;
+        this.acquireCount = acquireCount;
+        this.averageAcquireMillis = averageAcquireMillis;
+        this.maxAcquireMillis = maxAcquireMillis;
+        this.averageUsageMillis = averageUsageMillis;
+        this.timeouts = timeouts;
+    }
+
+    public String getPool() {
+        return pool;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    public int getTotalConnections() {
+        return totalConnections;
+    }
+
+    public int getPendingThreads() {
+        return pendingThreads;
+    }
+
+    public long getAcquireCount() {
+        return acquireCount;
+    }
+
+    public double getAverageAcquireMillis() {
+        return averageAcquireMillis;
+    }
+
+    public double getMaxAcquireMillis() {
+        return maxAcquireMillis;
+    }
+
+    public double getAverageUsageMillis() {
+        return averageUsageMillis;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+}
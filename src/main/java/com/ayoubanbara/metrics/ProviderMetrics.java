@@ -0,0 +1,71 @@
+package com.ayoubanbara.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Latency and error counts of the {@link Operation}s of one provider component. Recording does not
+ * lock, the statistics are indexed by the operation ordinal. {@link #time} takes the work as a lambda,
+ * which allocates when it captures arguments; hot paths can use {@link #record} instead.
+ * <p>
+ * Timed operations are spans of the {@link Trace} the component's {@link Tracer} records on the calling
+ * thread, not of a trace of another component sharing the thread.
+ */
+public class ProviderMetrics {
+
+    private final OperationStats[] stats;
+    private final Tracer tracer;
+
+    /**
+     * @param tracer tracer of the component, null when tracing is disabled
+     */
+    public ProviderMetrics(Tracer tracer) {
+        this.tracer = tracer;
+        Operation[] operations = Operation.values();
+        this.stats = new OperationStats[operations.length];
+        for (Operation operation : operations) {
+            stats[operation.ordinal()] = new OperationStats(operation);
+        }
+    }
+
+    /**
+     * Records an operation started at {@code startNanos}, as read from {@link System#nanoTime()}.
+     */
+    public void record(Operation operation, long startNanos, boolean failed) {
+        stats[operation.ordinal()].record(System.nanoTime() - startNanos, failed);
+    }
+
+    /**
+     * Runs {@code work}, recording it as a span of the {@link Trace} of the calling thread, if any.
+     */
+    public <T> T time(Operation operation, Supplier<T> work) {
+        long start = System.nanoTime();
+        Trace trace = tracer == null ? null : Trace.active(tracer);
+        int span = trace == null ? -1 : trace.open(operation, start);
+        boolean failed = true;
+        try {
+            T result = work.get();
+            failed = false;
+            return result;
+        } finally {
+            long duration = System.nanoTime() - start;
+            stats[operation.ordinal()].record(duration, failed);
+            if (trace != null) {
+                trace.close(span, duration, failed);
+            }
+        }
+    }
+
+    public OperationSnapshot snapshot(Operation operation) {
+        return stats[operation.ordinal()].snapshot();
+    }
+
+    public List<OperationSnapshot> snapshot() {
+        List<OperationSnapshot> snapshots = new ArrayList<>(stats.length);
+        for (OperationStats operationStats : stats) {
+            snapshots.add(operationStats.snapshot());
+        }
+        return snapshots;
+    }
+}
@@ -0,0 +1,53 @@
+package com.ayoubanbara.metrics;
+
+import com.ayoubanbara.datasource.ReplicaRouter;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a {@link ReplicaRouter.Replica} and its pool, exposed through JMX as composite data.
+ */
+public class ReplicaSnapshot {
+
+    private final String name;
+    private final boolean healthy;
+    private final double latencyMillis;
+    private final long sessions;
+    private final long failures;
+    private final PoolSnapshot pool;
+
+    @ConstructorProperties({"name", "healthy", "latencyMillis", "sessions", "failures", "pool"})
+    public ReplicaSnapshot(String name, boolean healthy, double latencyMillis, long sessions, long failures,
+                           PoolSnapshot pool) {
+        this.name = name;
+        this.healthy = healthy;
+        this.latencyMillis = latencyMillis;
+        this.sessions = sessions;
+        this.failures = failures;
+        this.pool = pool;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public long getSessions() {
+        return sessions;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public PoolSnapshot getPool() {
+        return pool;
+    }
+}
@@ -0,0 +1,211 @@
+package com.ayoubanbara.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Spans of the {@link Operation}s run by one provider during one Keycloak session, typically one
+ * authentication: the user lookup, its queries, the hash verification and the writes.
+ * <p>
+ * The trace is active for its {@link Tracer} on the thread which began it, so the sessions of two
+ * provider components on one thread each record their own spans. Spans are stored in preallocated
+ * arrays and only rendered when the trace turns out to be slow. A trace ended from another thread is
+ * discarded: the owner thread drops it on its next span instead of recording into it forever.
+ */
+public final class Trace {
+
+    private static final int MAX_SPANS = 64;
+    private static final int MAX_DEPTH = 16;
+
+    /**
+     * Trace holding the innermost open span of the thread, which receives the SQL statements.
+     */
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+    private final Operation[] operations = new Operation[MAX_SPANS];
+    private final int[] depths = new int[MAX_SPANS];
+    private final long[] starts = new long[MAX_SPANS];
+    private final long[] durations = new long[MAX_SPANS];
+    private final boolean[] failures = new boolean[MAX_SPANS];
+    private final String[] statements = new String[MAX_SPANS];
+    private final Object[][] parameters = new Object[MAX_SPANS][];
+    private final int[] open = new int[MAX_DEPTH];
+    private final Trace[] outer = new Trace[MAX_DEPTH];
+
+    private final Tracer tracer;
+    private final Thread owner;
+    private final long began;
+    private volatile boolean ended;
+    private int count;
+    private int depth;
+    private int dropped;
+
+    private Trace(Tracer tracer) {
+        this.tracer = tracer;
+        this.owner = Thread.currentThread();
+        this.began = System.nanoTime();
+    }
+
+    /**
+     * @return the trace of the calling thread, or null when it already records one for {@code tracer}
+     */
+    static Trace begin(Tracer tracer) {
+        if (active(tracer) != null) {
+            return null;
+        }
+        Trace trace = new Trace(tracer);
+        tracer.active.set(trace);
+        return trace;
+    }
+
+    /**
+     * Ends the trace, handing it to its {@link Tracer} which keeps it when slow. Called from another
+     * thread than the one which began it, the trace is discarded.
+     */
+    public void end() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        if (owner != Thread.currentThread() || tracer.active.get() != this) {
+            return;
+        }
+        // cleared first, so a failing tracer leaves the thread untraced
+        tracer.active.remove();
+        tracer.complete(this, totalNanos());
+    }
+
+    /**
+     * @return the trace of {@code tracer} on the calling thread, dropping it when it was ended from another thread
+     */
+    static Trace active(Tracer tracer) {
+        Trace trace = tracer.active.get();
+        if (trace != null && trace.ended) {
+            tracer.active.remove();
+            return null;
+        }
+        return trace;
+    }
+
+    /**
+     * @return the trace holding the innermost open span of the calling thread, null when there is none
+     */
+    private static Trace current() {
+        Trace trace = CURRENT.get();
+        return trace == null || trace.ended ? null : trace;
+    }
+
+    static boolean isActive() {
+        return current() != null;
+    }
+
+    /**
+     * Attaches an SQL statement to the innermost open span of the calling thread.
+     */
+    static void statement(String sql) {
+        Trace trace = current();
+        int span = trace == null ? -1 : trace.innermost();
+        if (span >= 0) {
+            String previous = trace.statements[span];
+            trace.statements[span] = previous == null ? sql : previous + "; " + sql;
+        }
+    }
+
+    /**
+     * Attaches the bind parameters of a query to the innermost open span of the calling thread.
+     */
+    static void parameters(Object[] values) {
+        Trace trace = current();
+        int span = trace == null ? -1 : trace.innermost();
+        if (span >= 0) {
+            trace.parameters[span] = values;
+        }
+    }
+
+    /**
+     * Opens a span, which receives the statements of the thread until it is closed.
+     *
+     * @return the span to close, or -1 when the trace is full
+     */
+    int open(Operation operation, long startNanos) {
+        int span = -1;
+        if (count < MAX_SPANS) {
+            span = count++;
+            operations[span] = operation;
+            depths[span] = depth;
+            starts[span] = startNanos;
+            durations[span] = -1;
+            failures[span] = false;
+        } else {
+            dropped++;
+        }
+        if (depth < MAX_DEPTH) {
+            open[depth] = span;
+            outer[depth] = CURRENT.get();
+            CURRENT.set(this);
+        }
+        depth++;
+        return span;
+    }
+
+    void close(int span, long durationNanos, boolean failed) {
+        if (depth > 0) {
+            depth--;
+            if (depth < MAX_DEPTH) {
+                CURRENT.set(outer[depth]);
+                outer[depth] = null;
+            }
+        }
+        if (span >= 0) {
+            durations[span] = durationNanos;
+            failures[span] = failed;
+        }
+    }
+
+    private int innermost() {
+        return depth > 0 && depth <= MAX_DEPTH ? open[depth - 1] : -1;
+    }
+
+    /**
+     * @return the time spent in the provider, the sum of the top level spans
+     */
+    private long totalNanos() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            if (depths[i] == 0 && durations[i] > 0) {
+                total += durations[i];
+            }
+        }
+        return total;
+    }
+
+    String render() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(millis(totalNanos())).append(" ms in ").append(count).append(" spans");
+        if (dropped > 0) {
+            builder.append(" (").append(dropped).append(" dropped)");
+        }
+        for (int i = 0; i < count; i++) {
+            builder.append('\n');
+            for (int indent = 0; indent <= depths[i]; indent++) {
+                builder.append("  ");
+            }
+            builder.append('+').append(millis(starts[i] - began)).append(" ms ")
+                    .append(operations[i].getMetricName()).append(' ')
+                    .append(durations[i] < 0 ? "unfinished" : millis(durations[i]) + " ms");
+            if (failures[i]) {
+                builder.append(" failed");
+            }
+            if (statements[i] != null) {
+                builder.append(" sql=[").append(statements[i]).append(']');
+            }
+            if (parameters[i] != null) {
+                builder.append(" binds=").append(Arrays.toString(parameters[i]));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,112 @@
+package com.ayoubanbara.metrics;
+
+import jakarta.persistence.Parameter;
+import jakarta.persistence.Query;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records a {@link Trace} per provider session and keeps the slow ones, those spending more than
+ * the threshold in the provider, in a ring buffer. Slow traces are also logged with their SQL
+ * statements and bind parameters, faster ones leave no output.
+ */
+@Slf4j
+public class Tracer {
+
+    private final String componentName;
+    private final long thresholdNanos;
+    private final AtomicReferenceArray<String> slowTraces;
+    private final AtomicLong slowCount = new AtomicLong();
+    private final LongAdder traceCount = new LongAdder();
+    final ThreadLocal<Trace> active = new ThreadLocal<>();
+
+    public Tracer(String componentName, long threshold, TimeUnit unit, int bufferSize) {
+        this.componentName = componentName;
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.slowTraces = new AtomicReferenceArray<>(Math.max(1, bufferSize));
+    }
+
+    /**
+     * Starts tracing the calling thread, until {@link Trace#end()}.
+     *
+     * @return the trace, or null when the thread is already traced by an enclosing session of this tracer
+     */
+    public Trace begin() {
+        return Trace.begin(this);
+    }
+
+    void complete(Trace trace, long totalNanos) {
+        traceCount.increment();
+        if (totalNanos < thresholdNanos) {
+            return;
+        }
+        String rendered = trace.render();
+        slowTraces.set((int) (slowCount.getAndIncrement() % slowTraces.length()), rendered);
+        log.warn("slow user storage session of component {}: {}", componentName, rendered);
+    }
+
+    public long getTraceCount() {
+        return traceCount.sum();
+    }
+
+    public long getSlowTraceCount() {
+        return slowCount.get();
+    }
+
+    public long getThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    /**
+     * @return the last slow traces, most recent first
+     */
+    public List<String> getSlowTraces() {
+        long written = slowCount.get();
+        int size = (int) Math.min(written, slowTraces.length());
+        List<String> traces = new ArrayList<>(size);
+        for (long i = written - 1; i >= written - size; i--) {
+            String trace = slowTraces.get((int) (i % slowTraces.length()));
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+
+    /**
+     * Attaches the bind parameters of {@code query} to the running span, when the thread is traced.
+     */
+    public static void parameters(Query query) {
+        if (!Trace.isActive()) {
+            return;
+        }
+        Set<Parameter<?>> parameters = query.getParameters();
+        Object[] values = new Object[parameters.size()];
+        int i = 0;
+        for (Parameter<?> parameter : parameters) {
+            values[i++] = (parameter.getName() == null ? parameter.getPosition() : parameter.getName())
+                    + "=" + query.getParameterValue(parameter);
+        }
+        Trace.parameters(values);
+    }
+
+    /**
+     * Attaches an executed SQL statement to the running span, when the thread is traced.
+     */
+    public static void statement(String sql) {
+        Trace.statement(sql);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("traces=%d slow=%d threshold=%d ms", traceCount.sum(), slowCount.get(),
+                TimeUnit.NANOSECONDS.toMillis(thresholdNanos));
+    }
+}
@@ -0,0 +1,32 @@
+package com.ayoubanbara.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of the {@link Tracer} counters, exposed through JMX as composite data.
+ */
+public class TracerSnapshot {
+
+    private final long traces;
+    private final long slowTraces;
+    private final long thresholdMillis;
+
+    @ConstructorProperties({"traces", "slowTraces", "thresholdMillis"})
+    public TracerSnapshot(long traces, long slowTraces, long thresholdMillis) {
+        this.traces = traces;
+        this.slowTraces = slowTraces;
+        this.thresholdMillis = thresholdMillis;
+    }
+
+    public long getTraces() {
+        return traces;
+    }
+
+    public long getSlowTraces() {
+        return slowTraces;
+    }
+
+    public long getThresholdMillis() {
+        return thresholdMillis;
+    }
+}
@@ -0,0 +1,17 @@
+package com.ayoubanbara.metrics;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * Hands the SQL prepared by Hibernate to the {@link Trace} of the calling thread, replacing
+ * {@code hibernate.show_sql} which printed every statement.
+ */
+public class TracingStatementInspector implements StatementInspector {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String inspect(String sql) {
+        Tracer.statement(sql);
+        return sql;
+    }
+}
@@ -0,0 +1,40 @@
+package com.ayoubanbara.metrics;
+
+import com.ayoubanbara.cache.UserCache;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a {@link UserCache}, exposed through JMX as composite data.
+ */
+public class UserCacheSnapshot {
+
+    private final int size;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    @ConstructorProperties({"size", "hits", "misses", "evictions"})
+    public UserCacheSnapshot(int size, long hits, long misses, long evictions) {
+        this.size = size;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+}
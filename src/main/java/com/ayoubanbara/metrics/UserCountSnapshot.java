@@ -0,0 +1,53 @@
+package com.ayoubanbara.metrics;
+
+import com.ayoubanbara.cache.UserCountProvider;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a {@link UserCountProvider}, exposed through JMX as composite data.
+ */
+public class UserCountSnapshot {
+
+    private final String mode;
+    private final long refreshes;
+    private final double averageRefreshMillis;
+    private final double lastRefreshMillis;
+    private final double maxRefreshMillis;
+    private final long ageSeconds;
+
+    @ConstructorProperties({"mode", "refreshes", "averageRefreshMillis", "lastRefreshMillis", "maxRefreshMillis", "ageSeconds"})
+    public UserCountSnapshot(String mode, long refreshes, double averageRefreshMillis, double lastRefreshMillis,
+                             double maxRefreshMillis, long ageSeconds) {
+        this.mode = mode;
+        this.refreshes = refreshes;
+        this.averageRefreshMillis = averageRefreshMillis;
+        this.lastRefreshMillis = lastRefreshMillis;
+        this.maxRefreshMillis = maxRefreshMillis;
+        this.ageSeconds = ageSeconds;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public long getRefreshes() {
+        return refreshes;
+    }
+
+    public double getAverageRefreshMillis() {
+        return averageRefreshMillis;
+    }
+
+    public double getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+
+    public double getMaxRefreshMillis() {
+        return maxRefreshMillis;
+    }
+
+    public long getAgeSeconds() {
+        return ageSeconds;
+    }
+}
@@ -0,0 +1,40 @@
+package com.ayoubanbara.metrics;
+
+import com.ayoubanbara.cache.VerifiedCredentialCache;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a {@link VerifiedCredentialCache}, exposed through JMX as composite data.
+ */
+public class VerifiedCredentialCacheSnapshot {
+
+    private final int size;
+    private final long hits;
+    private final long misses;
+    private final long savedMillis;
+
+    @ConstructorProperties({"size", "hits", "misses", "savedMillis"})
+    public VerifiedCredentialCacheSnapshot(int size, long hits, long misses, long savedMillis) {
+        this.size = size;
+        this.hits = hits;
+        this.misses = misses;
+        this.savedMillis = savedMillis;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getSavedMillis() {
+        return savedMillis;
+    }
+}
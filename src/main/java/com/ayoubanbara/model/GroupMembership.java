@@ -0,0 +1,46 @@
+package com.ayoubanbara.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Index;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+
+/**
+ * Membership of a user in a Keycloak group, kept next to {@code business_users} instead of the
+ * Keycloak federated storage. The primary key {@code (group_id, user_id)} serves the paged member
+ * listings, the {@code user_id} index the group lookups of a user.
+ */
+@NamedQueries({
+        @NamedQuery(name="getGroupMembers", query="select u from User u join GroupMembership m on m.userId = u.id " +
+                "where m.groupId = :groupId order by m.userId"),
+        @NamedQuery(name="getGroupIdsOfUsers", query="select m.userId, m.groupId from GroupMembership m where m.userId in :userIds"),
+})
+@Entity
+@IdClass(GroupMembership.Key.class)
+@Table(name = "business_user_groups", indexes = @Index(name = "business_user_groups_user_id", columnList = "user_id"))
+@Data
+@Accessors(chain = true)
+public class GroupMembership {
+    @Id
+    @Column(name = "group_id", length = 36)
+    private String groupId;
+    @Id
+    @Column(name = "user_id")
+    private Integer userId;
+
+    @Data
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String groupId;
+        private Integer userId;
+    }
+}
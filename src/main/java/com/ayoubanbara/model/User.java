@@ -1,34 +1,66 @@
 package com.ayoubanbara.model;
 
 import com.ayoubanbara.utils.StringTrimConverter;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.Column;
 import jakarta.persistence.Convert;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.NamedQueries;
 import jakarta.persistence.NamedQuery;
+import jakarta.persistence.QueryHint;
 import jakarta.persistence.Table;
 import lombok.Data;
 import lombok.ToString;
 import lombok.experimental.Accessors;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.ColumnDefault;
 
+import java.util.Date;
+
 /**
  * @author Ayoub Anbara, https://www.ayoubanbara.com
  */
 @NamedQueries({
        // @NamedQuery(name="getUserByUsername", query="select u from User u where u.username = :username"),
-        @NamedQuery(name="getUserByEmail", query="select u from User u where u.email = :email"),
-        @NamedQuery(name="getUserCount", query="select count(u) from User u"),
+        @NamedQuery(name="getUserByEmail", query="select u from User u where u.email = :email",
+                hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
+        @NamedQuery(name="getUserCount", query="select count(u) from User u",
+                hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
         @NamedQuery(name="getAllUsers", query="select u from User u"),
+        @NamedQuery(name="getEmails", query="select u.id, u.email, u.updatedAt from User u order by u.id"),
+        @NamedQuery(name="getEmailsChangedSince", query="select u.id, u.email, u.updatedAt from User u " +
+                "where u.updatedAt >= :since order by u.id"),
         @NamedQuery(name="searchForUser", query="select u from User u where " +
                // "( lower(u.username) like :search or u.email like :search ) order by u.username"),
-                "( lower(u.email) like :search ) order by u.email"),
+                "( lower(u.email) like :search escape '!' ) order by u.email, u.id"),
+        @NamedQuery(name="searchForUserAfter", query="select u from User u where ( lower(u.email) like :search escape '!' ) " +
+                "and ( u.email > :email or ( u.email = :email and u.id > :id ) ) order by u.email, u.id"),
+        // no lower(): the case insensitive collation of the email column lets the unique index serve the prefix
+        @NamedQuery(name="searchForUserByPrefix", query="select u from User u where " +
+                "u.email like :search escape '!' order by u.email, u.id"),
+        @NamedQuery(name="searchForUserByPrefixAfter", query="select u from User u where u.email like :search escape '!' " +
+                "and ( u.email > :email or ( u.email = :email and u.id > :id ) ) order by u.email, u.id"),
+        @NamedQuery(name="getUsersByIds", query="select u from User u where u.id in :ids"),
+        @NamedQuery(name="getUsersByEmails", query="select u from User u where u.email in :emails"),
+        @NamedQuery(name="getUsersAfterId", query="select u from User u where u.id > :id order by u.id"),
+        @NamedQuery(name="getUsersChangedSince", query="select u from User u where u.updatedAt > :since " +
+                "or ( u.updatedAt = :since and u.id > :id ) order by u.updatedAt, u.id"),
+        @NamedQuery(name="getLastChange", query="select max(u.updatedAt) from User u"),
+        @NamedQuery(name="getUsersChangedAfterId", query="select u from User u where u.id > :id " +
+                "and u.updatedAt > :since order by u.id"),
 })
 @Entity
-@Table(name = "business_users")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Table(name = "business_users", indexes = {
+        @Index(name = "business_users_phone", columnList = "phone"),
+        @Index(name = "business_users_updated_at", columnList = "updated_at")
+})
 @Data
 @Accessors(chain = true)
 @ToString
@@ -52,6 +84,11 @@ public class User {
     @Column(nullable = false, insertable = false)
     @ColumnDefault("0")
     private boolean blocked;
+    @Convert(converter = StringTrimConverter.class)
+    private String phone;
+    @Column(name = "updated_at", insertable = false, updatable = false,
+            columnDefinition = "timestamp not null default current_timestamp on update current_timestamp")
+    private Date updatedAt;
 
 
 
@@ -1,32 +1,74 @@
 package com.ayoubanbara.representations;
 
 import com.ayoubanbara.beans.PasswordEncoderSingleton;
+import com.ayoubanbara.dao.GroupMembershipLoader;
 import com.ayoubanbara.dao.UserDAO;
 import com.ayoubanbara.model.User;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.storage.ReadOnlyException;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 import org.springframework.security.crypto.password.PasswordEncoder;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 public class UserRepresentation extends AbstractUserAdapterFederatedStorage {
+
+    /**
+     * Attributes stored in {@code business_users} columns, read from the user row instead of the federated storage.
+     */
+    private static final Map<String, ColumnAttribute> COLUMN_ATTRIBUTES = Map.of(
+            "phone", new ColumnAttribute(User::getPhone, User::setPhone));
+
     private  User userEntity;
     private final UserDAO userDAO;
+    private final PasswordEncoder passwordEncoder;
+    private final GroupMembershipLoader groupMemberships;
+    /**
+     * Attributes of the federated storage and columns, loaded on first read and kept for the session.
+     */
+    private MultivaluedHashMap<String, String> attributes;
 
     public UserRepresentation(KeycloakSession session,
                               RealmModel realm,
                               ComponentModel storageProviderModel,
                               User userEntity,
                               UserDAO userDAO) {
+        this(session, realm, storageProviderModel, userEntity, userDAO, PasswordEncoderSingleton.getInstance());
+    }
+
+    public UserRepresentation(KeycloakSession session,
+                              RealmModel realm,
+                              ComponentModel storageProviderModel,
+                              User userEntity,
+                              UserDAO userDAO,
+                              PasswordEncoder passwordEncoder) {
+        this(session, realm, storageProviderModel, userEntity, userDAO, passwordEncoder, null);
+    }
+
+    public UserRepresentation(KeycloakSession session,
+                              RealmModel realm,
+                              ComponentModel storageProviderModel,
+                              User userEntity,
+                              UserDAO userDAO,
+                              PasswordEncoder passwordEncoder,
+                              GroupMembershipLoader groupMemberships) {
         super(session, realm, storageProviderModel);
         this.userEntity = userEntity;
         this.userDAO = userDAO;
+        this.passwordEncoder = passwordEncoder;
+        this.groupMemberships = groupMemberships;
     }
 
     @Override
@@ -55,11 +97,14 @@ public class UserRepresentation extends AbstractUserAdapterFederatedStorage {
 
     @Override
     public void setSingleAttribute(String name, String value) {
-//        if (name.equals("phone")) {
-//            userEntity.setPhone(value);
-//        } else {
-        super.setSingleAttribute(name, value);
-        //     }
+        ColumnAttribute column = COLUMN_ATTRIBUTES.get(name);
+        if (column != null) {
+            column.setter.accept(userEntity, value);
+            userEntity = userDAO.updateUser(userEntity, name);
+        } else {
+            super.setSingleAttribute(name, value);
+        }
+        attributes = null;
     }
 
     @Override
@@ -86,31 +131,69 @@ public class UserRepresentation extends AbstractUserAdapterFederatedStorage {
 
     @Override
     public String getFirstAttribute(String name) {
-//        if (name.equals("phone")) {
-//            return userEntity.getPhone();
-//        } else {
-        return super.getFirstAttribute(name);
-        //     }
+        List<String> values = getAttribute(name);
+        return values.isEmpty() ? null : values.get(0);
     }
 
     @Override
     public Map<String, List<String>> getAttributes() {
-        Map<String, List<String>> attrs = super.getAttributes();
-        MultivaluedHashMap<String, String> all = new MultivaluedHashMap<>();
-        all.putAll(attrs);
-        //  all.add("phone", userEntity.getPhone());
-        return all;
+        return Collections.unmodifiableMap(attributes());
     }
 
     @Override
     public List<String> getAttribute(String name) {
-//        if (name.equals("phone")) {
-//            List<String> phone = new LinkedList<>();
-//            phone.add(userEntity.getPhone());
-//            return phone;
-//        } else {
-        return super.getAttribute(name);
-        //      }
+        MultivaluedHashMap<String, String> all = attributes();
+        List<String> values = all.get(name);
+        if (values == null) {
+            // built-in attributes such as emailVerified are stored under their internal name
+            values = all.get(mapAttribute(name));
+        }
+        return values == null ? Collections.emptyList() : Collections.unmodifiableList(values);
+    }
+
+    /**
+     * Reads the federated storage once, so the attribute lookups of the protocol mappers do not query it each.
+     */
+    private MultivaluedHashMap<String, String> attributes() {
+        if (attributes == null) {
+            MultivaluedHashMap<String, String> all = new MultivaluedHashMap<>();
+            all.putAll(super.getAttributes());
+            all.putSingle(UserModel.EMAIL, userEntity.getEmail());
+            COLUMN_ATTRIBUTES.forEach((name, column) -> {
+                String value = column.getter.apply(userEntity);
+                if (value != null) {
+                    all.putSingle(name, value);
+                } else {
+                    all.remove(name);
+                }
+            });
+            attributes = all;
+        }
+        return attributes;
+    }
+
+    @Override
+    protected Set<GroupModel> getGroupsInternal() {
+        Set<GroupModel> groups = super.getGroupsInternal();
+        if (groupMemberships == null) {
+            return groups;
+        }
+        Set<GroupModel> all = new HashSet<>(groups);
+        for (String groupId : groupMemberships.getGroupIds(userEntity.getId())) {
+            GroupModel group = realm.getGroupById(groupId);
+            if (group != null) {
+                all.add(group);
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public void leaveGroup(GroupModel group) {
+        if (groupMemberships != null && groupMemberships.getGroupIds(userEntity.getId()).contains(group.getId())) {
+            throw new ReadOnlyException("group membership is read only");
+        }
+        super.leaveGroup(group);
     }
 
     @Override
@@ -123,9 +206,12 @@ public class UserRepresentation extends AbstractUserAdapterFederatedStorage {
     }
 
     public void setPassword(String password) {
-        PasswordEncoder passwordEncoder = PasswordEncoderSingleton.getInstance();
-        userEntity.setPassword(passwordEncoder.encode(password));
-        userEntity = userDAO.updateUser(userEntity);
+        setEncodedPassword(passwordEncoder.encode(password));
+    }
+
+    public void setEncodedPassword(String encodedPassword) {
+        userEntity.setPassword(encodedPassword);
+        userEntity = userDAO.updateUser(userEntity, "password");
     }
 
     @Override
@@ -139,4 +225,14 @@ public class UserRepresentation extends AbstractUserAdapterFederatedStorage {
 //        userEntity.setEnabled(enabled);
 //        userEntity = userDAO.updateUser(userEntity);
     }
+
+    private static class ColumnAttribute {
+        private final Function<User, String> getter;
+        private final BiConsumer<User, String> setter;
+
+        ColumnAttribute(Function<User, String> getter, BiConsumer<User, String> setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
 }
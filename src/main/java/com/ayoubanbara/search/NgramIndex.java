@@ -0,0 +1,271 @@
+package com.ayoubanbara.search;
+
+import com.ayoubanbara.dao.UserDAO;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory trigram index of the emails, answering substring searches without scanning the table.
+ * <p>
+ * Each trigram maps to the positions of the emails containing it, a search walks the shortest
+ * posting list among the trigrams of the term and checks each candidate. The index is built from the
+ * {@link UserDAO} in id order, then each refresh adds the rows whose {@code updated_at} is at most
+ * {@code lookback} older than the newest change seen: rows committed out of id order, and emails
+ * changed by other systems, which replace the previous email of the user. A full rebuild on a longer
+ * interval catches the changes older than that margin and compacts the replaced entries.
+ */
+@Slf4j
+public class NgramIndex {
+
+    private static final int N = 3;
+
+    private final int maxCandidates;
+    private final long lookbackMillis;
+    private final long rebuildNanos;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    private Entries entries = new Entries();
+
+    private Date lastChange;
+    private long lastRebuildNanos;
+    private volatile boolean ready;
+    private volatile long lastRefreshMillis;
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+
+    /**
+     * @param maxCandidates  searches with more candidates than this are left to the database
+     * @param lookback  margin re-read by each refresh, at least the longest transaction writing users
+     * @param rebuildInterval  interval of the full rebuilds
+     */
+    public NgramIndex(int maxCandidates, long lookback, long rebuildInterval, TimeUnit unit) {
+        this.maxCandidates = maxCandidates;
+        this.lookbackMillis = unit.toMillis(lookback);
+        this.rebuildNanos = unit.toNanos(rebuildInterval);
+    }
+
+    public void refresh(UserDAO userDAO) {
+        if (!refreshLock.tryLock()) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            if (!ready || start - lastRebuildNanos > rebuildNanos) {
+                // built aside, searches use the previous entries meanwhile
+                Entries rebuilt = new Entries();
+                Date rebuiltLastChange = userDAO.forEachEmailChangedSince(null, rebuilt::add);
+                rebuilt.seal();
+                lock.writeLock().lock();
+                try {
+                    entries = rebuilt;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                lastChange = rebuiltLastChange;
+                lastRebuildNanos = start;
+                rebuilds.increment();
+                ready = true;
+            } else {
+                Date since = lastChange == null ? null : new Date(lastChange.getTime() - lookbackMillis);
+                lastChange = userDAO.forEachEmailChangedSince(since, this::put);
+            }
+            lastRefreshMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    public boolean canSearch(String term) {
+        return ready && term != null && term.length() >= N;
+    }
+
+    /**
+     * @return the ids of the users whose email contains {@code term}, in email order, or null when
+     * the term is too unselective for the index
+     */
+    public List<Integer> search(String term) {
+        String needle = term.toLowerCase(Locale.ROOT);
+        searches.increment();
+        lock.readLock().lock();
+        try {
+            Entries current = entries;
+            Postings shortest = null;
+            for (long gram : grams(needle)) {
+                Postings candidates = current.postings.get(gram);
+                if (candidates == null) {
+                    return List.of();
+                }
+                if (shortest == null || candidates.size < shortest.size) {
+                    shortest = candidates;
+                }
+            }
+            if (shortest == null || shortest.size > maxCandidates) {
+                fallbacks.increment();
+                return null;
+            }
+            String[] emails = current.emails;
+            List<Integer> matches = new ArrayList<>();
+            for (int i = 0; i < shortest.size; i++) {
+                int position = shortest.positions[i];
+                // null once replaced by a newer email of the user
+                if (emails[position] != null && emails[position].contains(needle)) {
+                    matches.add(position);
+                }
+            }
+            int[] ids = current.ids;
+            matches.sort((a, b) -> {
+                int byEmail = emails[a].compareTo(emails[b]);
+                return byEmail != 0 ? byEmail : Integer.compare(ids[a], ids[b]);
+            });
+            List<Integer> result = new ArrayList<>(matches.size());
+            for (int position : matches) {
+                result.add(ids[position]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or replaces the email of a user found by an incremental refresh.
+     */
+    private void put(int id, String email) {
+        String normalized = normalize(email);
+        lock.writeLock().lock();
+        try {
+            Entries current = entries;
+            int position = current.positionOf(id);
+            if (position >= 0) {
+                if (normalized.equals(current.emails[position])) {
+                    return;
+                }
+                current.emails[position] = null;
+            }
+            current.add(id, normalized);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static Set<Long> grams(String value) {
+        Set<Long> grams = new HashSet<>();
+        for (int i = 0; i + N <= value.length(); i++) {
+            grams.add(((long) value.charAt(i) << 32) | ((long) value.charAt(i + 1) << 16) | value.charAt(i + 2));
+        }
+        return grams;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return the number of entries, replaced emails included until the next rebuild
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    public long getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+
+    public long getRebuilds() {
+        return rebuilds.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("entries=%d searches=%d fallbacks=%d rebuilds=%d lastRefreshMs=%d", size(), getSearches(),
+                getFallbacks(), getRebuilds(), getLastRefreshMillis());
+    }
+
+    /**
+     * Emails by position and their posting lists. The positions up to {@link #seal()} come from a full
+     * build in id order and are found by binary search, the later ones through {@code appended}.
+     */
+    private static class Entries {
+        private final HashMap<Long, Postings> postings = new HashMap<>();
+        private final HashMap<Integer, Integer> appended = new HashMap<>();
+        private int[] ids = new int[1024];
+        private String[] emails = new String[1024];
+        private int size;
+        private int sorted = Integer.MAX_VALUE;
+
+        void add(int id, String email) {
+            String normalized = normalize(email);
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                emails = Arrays.copyOf(emails, size * 2);
+            }
+            int position = size++;
+            ids[position] = id;
+            emails[position] = normalized;
+            if (position >= sorted) {
+                appended.put(id, position);
+            }
+            for (long gram : grams(normalized)) {
+                postings.computeIfAbsent(gram, key -> new Postings()).add(position);
+            }
+        }
+
+        void seal() {
+            sorted = size;
+        }
+
+        /**
+         * @return the current position of the user, -1 when not indexed
+         */
+        int positionOf(int id) {
+            Integer position = appended.get(id);
+            if (position != null) {
+                return position;
+            }
+            position = Arrays.binarySearch(ids, 0, Math.min(sorted, size), id);
+            return position >= 0 && emails[position] != null ? position : -1;
+        }
+    }
+
+    private static class Postings {
+        private int[] positions = new int[4];
+        private int size;
+
+        void add(int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+    }
+}
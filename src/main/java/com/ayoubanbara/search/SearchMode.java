@@ -0,0 +1,35 @@
+package com.ayoubanbara.search;
+
+import java.util.Locale;
+
+/**
+ * How {@code searchForUser} matches the search term against emails.
+ */
+public enum SearchMode {
+    /**
+     * Picks the cheapest mode satisfying the term: {@code term*} is a prefix search, anything else a
+     * substring search served by the n-gram index when it is enabled, by {@code like '%term%'} otherwise.
+     */
+    AUTO,
+    /**
+     * {@code email like 'term%'}, backed by the unique email index.
+     */
+    PREFIX,
+    /**
+     * {@code lower(email) like '%term%'}, a full table scan.
+     */
+    SUBSTRING,
+    /**
+     * MySQL {@code match(email) against ('term*' in boolean mode)}, needs a FULLTEXT index on
+     * {@code business_users.email}. Matches words of the email starting with the term.
+     */
+    FULLTEXT,
+    /**
+     * Substring search in the in-memory n-gram index of the emails.
+     */
+    NGRAM;
+
+    public static SearchMode of(String value) {
+        return value == null || value.isBlank() ? AUTO : valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,50 @@
+package com.ayoubanbara.search;
+
+/**
+ * The mode chosen for one search term and the term stripped of its {@code *} wildcards.
+ */
+public class SearchPlan {
+
+    private final SearchMode mode;
+    private final String term;
+
+    private SearchPlan(SearchMode mode, String term) {
+        this.mode = mode;
+        this.term = term;
+    }
+
+    /**
+     * @param configured  the mode configured for the component
+     * @param searchString  the term as typed in the admin console, {@code *} as wildcard
+     * @param ngramIndex  the n-gram index, null when disabled
+     * @return the plan, with a null term when every user matches
+     */
+    public static SearchPlan of(SearchMode configured, String searchString, NgramIndex ngramIndex) {
+        String raw = searchString == null ? "" : searchString.trim();
+        String term = raw.replace("*", "");
+        if (term.isEmpty()) {
+            return new SearchPlan(SearchMode.SUBSTRING, null);
+        }
+        if (configured != SearchMode.AUTO) {
+            if (configured == SearchMode.NGRAM && (ngramIndex == null || !ngramIndex.canSearch(term))) {
+                return new SearchPlan(SearchMode.SUBSTRING, term);
+            }
+            return new SearchPlan(configured, term);
+        }
+        if (raw.endsWith("*") && !raw.startsWith("*")) {
+            return new SearchPlan(SearchMode.PREFIX, term);
+        }
+        if (ngramIndex != null && ngramIndex.canSearch(term)) {
+            return new SearchPlan(SearchMode.NGRAM, term);
+        }
+        return new SearchPlan(SearchMode.SUBSTRING, term);
+    }
+
+    public SearchMode getMode() {
+        return mode;
+    }
+
+    public String getTerm() {
+        return term;
+    }
+}
@@ -0,0 +1,188 @@
+package com.ayoubanbara.sync;
+
+import com.ayoubanbara.dao.UserDAO;
+import com.ayoubanbara.model.User;
+import com.ayoubanbara.representations.UserRepresentation;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.storage.UserStorageProviderModel;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Detects the users changed in {@code business_users} by other systems and evicts them from the
+ * Keycloak user cache, which propagates the invalidation to every node of the cluster.
+ * <p>
+ * {@code updated_at} is set when a statement runs, not when its transaction commits, so a change can
+ * become visible with a timestamp older than changes already seen. Each poll therefore reads again the
+ * users changed within {@code lookback} of the newest change seen, in {@code (updated_at, id)} order,
+ * and evicts those it has not evicted for that timestamp yet, at most {@code maxChangesPerPoll}; the
+ * rest is evicted by the next polls. The lookback must cover the longest transaction writing users.
+ * <p>
+ * A session reading a lagging replica right after an eviction may cache the old row again. Each change
+ * is evicted a second time once it leaves the lookback window, so the lookback must also cover the
+ * replica lag.
+ */
+@Slf4j
+public class UserChangeWatcher {
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final ComponentModel model;
+    private final int maxChangesPerPoll;
+    private final long lookbackMillis;
+    private final Consumer<User> localEviction;
+    /**
+     * Newest evicted change, the lookback window ends there.
+     */
+    private Date lastChange;
+    /**
+     * Last evicted version of the users changed within the lookback window, by id.
+     */
+    private final Map<Integer, User> evicted = new HashMap<>();
+
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile long lastPollNanos;
+
+    /**
+     * @param lookback margin of {@code updated_at} read again by each poll, in {@code unit}
+     * @param localEviction drops the user from the caches of this provider, called for each changed user
+     */
+    public UserChangeWatcher(KeycloakSessionFactory sessionFactory, ComponentModel model, int maxChangesPerPoll,
+                             long lookback, TimeUnit unit, Consumer<User> localEviction) {
+        this.sessionFactory = sessionFactory;
+        this.model = model;
+        this.maxChangesPerPoll = maxChangesPerPoll;
+        this.lookbackMillis = unit.toMillis(lookback);
+        this.localEviction = localEviction;
+    }
+
+    public void poll(UserDAO userDAO) {
+        long start = System.nanoTime();
+        if (lastChange == null) {
+            // changes made before the first poll are not in any cache yet
+            lastChange = userDAO.getLastChange();
+            if (lastChange == null) {
+                lastChange = new Date(0);
+            }
+        } else {
+            List<User> changed = readChanges(userDAO);
+            changed.addAll(settledChanges());
+            if (!changed.isEmpty()) {
+                changed.forEach(localEviction);
+                evict(changed);
+                evictions.add(changed.size());
+            }
+        }
+        polls.increment();
+        lastPollNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * @return the users changed within the lookback window and not evicted yet for their {@code updated_at}
+     */
+    private List<User> readChanges(UserDAO userDAO) {
+        List<User> changed = new ArrayList<>();
+        Date since = new Date(lastChange.getTime() - lookbackMillis);
+        int lastId = 0;
+        while (true) {
+            List<User> page = userDAO.getUsersChangedSince(since, lastId, maxChangesPerPoll);
+            for (User user : page) {
+                User previous = evicted.get(user.getId());
+                if (previous == null || previous.getUpdatedAt().getTime() != user.getUpdatedAt().getTime()) {
+                    if (changed.size() == maxChangesPerPoll) {
+                        return changed;
+                    }
+                    changed.add(user);
+                    evicted.put(user.getId(), user);
+                }
+                since = user.getUpdatedAt();
+                lastId = user.getId();
+                if (since.after(lastChange)) {
+                    lastChange = since;
+                }
+            }
+            if (page.size() < maxChangesPerPoll) {
+                return changed;
+            }
+        }
+    }
+
+    /**
+     * @return the evicted users whose change left the lookback window, to evict once more now that the
+     * replicas caught up with it
+     */
+    private List<User> settledChanges() {
+        List<User> settled = new ArrayList<>();
+        long windowStart = lastChange.getTime() - lookbackMillis;
+        for (Iterator<User> users = evicted.values().iterator(); users.hasNext(); ) {
+            User user = users.next();
+            if (user.getUpdatedAt().getTime() < windowStart) {
+                settled.add(user);
+                users.remove();
+            }
+        }
+        return settled;
+    }
+
+    private void evict(List<User> changed) {
+        KeycloakSession session = sessionFactory.create();
+        try {
+            session.getTransactionManager().begin();
+            RealmModel realm = session.realms().getRealm(model.getParentId());
+            UserCache userCache = session.userCache();
+            if (realm != null && userCache != null) {
+                boolean imported = new UserStorageProviderModel(model).isImportEnabled();
+                for (User user : changed) {
+                    userCache.evict(realm, new UserRepresentation(session, realm, model, user, null));
+                    if (imported) {
+                        UserModel local = UserImporter.getImportedUser(session, realm, model, user.getId());
+                        if (local != null) {
+                            userCache.evict(realm, local);
+                        }
+                    }
+                }
+            }
+            // the invalidations are sent to the other nodes on commit
+            session.getTransactionManager().commit();
+        } catch (RuntimeException e) {
+            if (session.getTransactionManager().isActive()) {
+                session.getTransactionManager().rollback();
+            }
+            throw e;
+        } finally {
+            session.close();
+        }
+        log.debug("evicted {} changed users of component {}", changed.size(), model.getName());
+    }
+
+    public long getPolls() {
+        return polls.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getLastPollMillis() {
+        return (double) lastPollNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("polls=%d evictions=%d lastPollMs=%.3f", getPolls(), getEvictions(), getLastPollMillis());
+    }
+}
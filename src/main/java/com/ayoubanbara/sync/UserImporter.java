@@ -0,0 +1,139 @@
+package com.ayoubanbara.sync;
+
+import com.ayoubanbara.dao.UserDAO;
+import com.ayoubanbara.model.User;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Imports {@code business_users} into the Keycloak local storage, for the full and changed-since
+ * synchronizations of the provider.
+ * <p>
+ * Users are read in chunks in id order, seeking from the last id of the previous chunk, and each
+ * chunk is imported in its own Keycloak session transaction, so neither memory nor transaction size
+ * grow with the table. Imported users are linked to the provider component and keep the
+ * {@code business_users} id in the {@link #EXTERNAL_ID_ATTRIBUTE} attribute, by which they are found
+ * again, so an email changed in {@code business_users} renames the imported user.
+ */
+@Slf4j
+public class UserImporter {
+
+    public static final String EXTERNAL_ID_ATTRIBUTE = "businessUserId";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final UserStorageProviderModel model;
+    private final UserDAO userDAO;
+    private final int chunkSize;
+
+    public UserImporter(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+                        UserDAO userDAO, int chunkSize) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.model = model;
+        this.userDAO = userDAO;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param since only import the users changed after this date, every user when null
+     */
+    public SynchronizationResult run(Date since) {
+        SynchronizationResult result = new SynchronizationResult();
+        long start = System.nanoTime();
+        int lastId = 0;
+        List<User> chunk;
+        while (!(chunk = userDAO.getUsersAfterId(lastId, since, chunkSize)).isEmpty()) {
+            result.add(importChunk(chunk));
+            lastId = chunk.get(chunk.size() - 1).getId();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int processed = result.getAdded() + result.getUpdated() + result.getFailed();
+        log.info("{} sync of component {} in realm {}: {} in {} s ({} users/s)", since == null ? "full" : "changed",
+                model.getName(), realmId, result, String.format("%.1f", seconds),
+                String.format("%.0f", processed / Math.max(seconds, 1e-3)));
+        return result;
+    }
+
+    private SynchronizationResult importChunk(List<User> chunk) {
+        SynchronizationResult result = new SynchronizationResult();
+        KeycloakSession session = sessionFactory.create();
+        try {
+            session.getTransactionManager().begin();
+            RealmModel realm = session.realms().getRealm(realmId);
+            for (User user : chunk) {
+                importUser(session, realm, user, result);
+            }
+            session.getTransactionManager().commit();
+        } catch (RuntimeException e) {
+            log.warn("failed to import users {} to {} of component {}", chunk.get(0).getId(),
+                    chunk.get(chunk.size() - 1).getId(), model.getName(), e);
+            if (session.getTransactionManager().isActive()) {
+                session.getTransactionManager().rollback();
+            }
+            // nothing of the chunk was committed
+            result = new SynchronizationResult();
+            result.setFailed(chunk.size());
+        } finally {
+            session.close();
+        }
+        return result;
+    }
+
+    private void importUser(KeycloakSession session, RealmModel realm, User user, SynchronizationResult result) {
+        if (user.getEmail() == null) {
+            result.increaseFailed();
+            return;
+        }
+        UserModel local = getImportedUser(session, realm, model, user.getId());
+        UserModel sameUsername = local != null && user.getEmail().equalsIgnoreCase(local.getUsername())
+                ? local : session.userLocalStorage().getUserByUsername(realm, user.getEmail());
+        if (sameUsername != null && sameUsername != local) {
+            // a local user, one of another provider or another imported user has the same username
+            log.warn("skipped user {}, username {} is already taken", user.getId(), user.getEmail());
+            result.increaseFailed();
+            return;
+        }
+        if (local == null) {
+            local = session.userLocalStorage().addUser(realm, user.getEmail());
+            local.setFederationLink(model.getId());
+            result.increaseAdded();
+        } else {
+            if (sameUsername == null) {
+                // the email changed in business_users
+                local.setUsername(user.getEmail());
+            }
+            result.increaseUpdated();
+        }
+        local.setEmail(user.getEmail());
+        local.setEnabled(user.isEnabled() && !user.isBlocked());
+        local.setSingleAttribute(EXTERNAL_ID_ATTRIBUTE, user.getId().toString());
+        if (user.getPhone() != null) {
+            local.setSingleAttribute("phone", user.getPhone());
+        } else {
+            local.removeAttribute("phone");
+        }
+    }
+
+    /**
+     * @return the user imported by the component for the {@code business_users} id, null if there is none
+     */
+    public static UserModel getImportedUser(KeycloakSession session, RealmModel realm, ComponentModel model,
+                                            Integer id) {
+        return session.userLocalStorage()
+                .searchForUserByUserAttributeStream(realm, EXTERNAL_ID_ATTRIBUTE, id.toString())
+                .filter(local -> Objects.equals(local.getFederationLink(), model.getId()))
+                .findFirst()
+                .orElse(null);
+    }
+}
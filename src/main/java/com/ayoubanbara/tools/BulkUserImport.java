@@ -0,0 +1,297 @@
+package com.ayoubanbara.tools;
+
+import com.ayoubanbara.CustomUserStorageProviderFactory;
+import com.ayoubanbara.beans.ConfigurablePasswordEncoder;
+import com.ayoubanbara.beans.PasswordEncoderSingleton;
+import com.ayoubanbara.datasource.PooledDataSourceFactory;
+import com.ayoubanbara.model.User;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityTransaction;
+import org.hibernate.Session;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_ALGORITHM_KEY;
+import static com.ayoubanbara.CustomUserStorageProviderFactory.PASSWORD_COST_KEY;
+import static com.ayoubanbara.utils.Helpers.getBoolean;
+import static com.ayoubanbara.utils.Helpers.getInt;
+import static com.ayoubanbara.utils.Helpers.isBlank;
+import static com.ayoubanbara.utils.Helpers.readSettings;
+
+/**
+ * Loads users into {@code business_users} from a CSV or JSON lines file, inserting new emails and
+ * re-hashing the password of existing ones.
+ * <p>
+ * Usage: {@code java -cp <provider jar and its dependencies> com.ayoubanbara.tools.BulkUserImport <settings.properties> <users.csv|users.jsonl>}
+ * <p>
+ * The settings file holds the provider component settings ({@code db:host}, {@code db:port}, ...,
+ * {@code password:algorithm}, {@code password:cost}) plus:
+ * <ul>
+ *     <li>{@code import:chunkSize} records per database transaction, 1000 by default</li>
+ *     <li>{@code import:threads} password hashing threads, the number of cores by default</li>
+ *     <li>{@code import:updateExisting} whether existing emails are updated, true by default</li>
+ *     <li>{@code import:checkpointFile} progress file, {@code <input>.checkpoint} by default</li>
+ * </ul>
+ * Records have the fields {@code email}, {@code password} (raw, hashed here) or {@code passwordHash}
+ * (already encoded, stored as is), and optionally {@code enabled} and {@code blocked}. CSV files start
+ * with a header naming these fields.
+ * <p>
+ * Passwords of the next chunk are hashed in parallel while the current chunk is written. Updates go
+ * through the {@link User} mapping and inserts through a JDBC batch on the same transaction, as the
+ * IDENTITY id keeps Hibernate from batching inserts. The number of committed records is saved after
+ * each chunk, so a failed run resumes where it stopped when started again.
+ */
+public class BulkUserImport {
+
+    public static final String CHUNK_SIZE_KEY = "import:chunkSize";
+    public static final String THREADS_KEY = "import:threads";
+    public static final String UPDATE_EXISTING_KEY = "import:updateExisting";
+    public static final String CHECKPOINT_FILE_KEY = "import:checkpointFile";
+
+    private static final String INSERT = "insert into business_users (email, password, enabled, blocked) values (?, ?, ?, ?)";
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final PasswordEncoder passwordEncoder;
+    private final ForkJoinPool hashingPool;
+    private final int chunkSize;
+    private final boolean updateExisting;
+    private final Path checkpointFile;
+
+    private long inserted;
+    private long updated;
+    private long skipped;
+    private long hashNanos;
+    private long writeNanos;
+
+    public BulkUserImport(EntityManagerFactory entityManagerFactory, PasswordEncoder passwordEncoder, int threads,
+                          int chunkSize, boolean updateExisting, Path checkpointFile) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.passwordEncoder = passwordEncoder;
+        this.hashingPool = new ForkJoinPool(threads);
+        this.chunkSize = chunkSize;
+        this.updateExisting = updateExisting;
+        this.checkpointFile = checkpointFile;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 2) {
+            System.err.println("Usage: BulkUserImport <settings.properties> <users.csv|users.jsonl>");
+            System.exit(2);
+        }
+        MultivaluedHashMap<String, String> config = readSettings(Paths.get(args[0]));
+
+        Path input = Paths.get(args[1]);
+        String checkpoint = config.getFirst(CHECKPOINT_FILE_KEY);
+        String algorithm = config.getFirst(PASSWORD_ALGORITHM_KEY);
+        PasswordEncoder passwordEncoder = isBlank(algorithm)
+                ? PasswordEncoderSingleton.getInstance()
+                : new ConfigurablePasswordEncoder(algorithm, getInt(config, PASSWORD_COST_KEY, ConfigurablePasswordEncoder.defaultCost(algorithm)));
+
+        try (HikariDataSource dataSource = PooledDataSourceFactory.create("user-import", config)) {
+            EntityManagerFactory entityManagerFactory = CustomUserStorageProviderFactory.createEntityManagerFactory(dataSource);
+            try {
+                new BulkUserImport(entityManagerFactory, passwordEncoder,
+                        getInt(config, THREADS_KEY, Runtime.getRuntime().availableProcessors()),
+                        getInt(config, CHUNK_SIZE_KEY, 1000),
+                        getBoolean(config, UPDATE_EXISTING_KEY, true),
+                        isBlank(checkpoint) ? Paths.get(input + ".checkpoint") : Paths.get(checkpoint))
+                        .run(input);
+            } finally {
+                entityManagerFactory.close();
+            }
+        }
+    }
+
+    public void run(Path input) throws IOException, InterruptedException {
+        long resumeFrom = readCheckpoint();
+        if (resumeFrom > 0) {
+            report("resuming after %d records", resumeFrom);
+        }
+        long done = resumeFrom;
+        long start = System.nanoTime();
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try (RecordReader reader = RecordReader.open(input)) {
+            reader.skip(resumeFrom);
+            List<ImportRecord> chunk = reader.next(chunkSize);
+            CompletableFuture<List<ImportRecord>> hashed = hash(chunk);
+            while (!chunk.isEmpty()) {
+                List<ImportRecord> current = await(hashed);
+                int read = chunk.size();
+                chunk = reader.next(chunkSize);
+                hashed = hash(chunk);
+
+                long writeStart = System.nanoTime();
+                write(entityManager, current);
+                writeNanos += System.nanoTime() - writeStart;
+                done += read;
+                writeCheckpoint(done);
+
+                double seconds = (System.nanoTime() - start) / 1e9;
+                report("%d records (%d inserted, %d updated, %d skipped), %.0f records/s, hashing %.1f s, writing %.1f s",
+                        done, inserted, updated, skipped, (done - resumeFrom) / Math.max(seconds, 1e-3),
+                        hashNanos / 1e9, writeNanos / 1e9);
+            }
+        } finally {
+            entityManager.close();
+            hashingPool.shutdown();
+        }
+        Files.deleteIfExists(checkpointFile);
+        report("imported %d records in %d s", done - resumeFrom, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+    }
+
+    private CompletableFuture<List<ImportRecord>> hash(List<ImportRecord> chunk) {
+        return CompletableFuture.supplyAsync(() -> {
+            long hashStart = System.nanoTime();
+            chunk.parallelStream()
+                    .filter(record -> record.passwordHash == null && record.password != null)
+                    .forEach(record -> record.passwordHash = passwordEncoder.encode(record.password));
+            // one chunk is hashed at a time, and read after the future completes
+            hashNanos += System.nanoTime() - hashStart;
+            return chunk;
+        }, hashingPool);
+    }
+
+    private static List<ImportRecord> await(CompletableFuture<List<ImportRecord>> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("password hashing failed", e.getCause());
+        }
+    }
+
+    /**
+     * Writes one chunk in a single transaction: batched updates of the existing emails, then a JDBC batch of inserts.
+     */
+    private void write(EntityManager entityManager, List<ImportRecord> chunk) {
+        // the last record of an email wins, the column is unique
+        Map<String, ImportRecord> byEmail = new LinkedHashMap<>();
+        for (ImportRecord record : chunk) {
+            if (isBlank(record.email)) {
+                skipped++;
+            } else if (byEmail.put(record.email.toLowerCase(Locale.ROOT), record) != null) {
+                skipped++;
+            }
+        }
+        if (byEmail.isEmpty()) {
+            return;
+        }
+        EntityTransaction transaction = entityManager.getTransaction();
+        try {
+            transaction.begin();
+            List<String> emails = byEmail.values().stream().map(record -> record.email).collect(Collectors.toList());
+            for (User user : entityManager.createNamedQuery("getUsersByEmails", User.class)
+                    .setParameter("emails", emails).getResultList()) {
+                ImportRecord record = byEmail.remove(user.getEmail().toLowerCase(Locale.ROOT));
+                if (record == null) {
+                    continue;
+                }
+                if (!updateExisting) {
+                    skipped++;
+                    continue;
+                }
+                if (record.passwordHash != null) {
+                    user.setPassword(record.passwordHash);
+                }
+                if (record.enabled != null) {
+                    user.setEnabled(record.enabled);
+                }
+                if (record.blocked != null) {
+                    user.setBlocked(record.blocked);
+                }
+                updated++;
+            }
+            entityManager.flush();
+            insert(entityManager, byEmail.values());
+            transaction.commit();
+        } catch (RuntimeException e) {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw e;
+        } finally {
+            entityManager.clear();
+        }
+    }
+
+    private void insert(EntityManager entityManager, Collection<ImportRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        entityManager.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT)) {
+                for (ImportRecord record : records) {
+                    statement.setString(1, record.email);
+                    statement.setString(2, record.passwordHash);
+                    statement.setBoolean(3, record.enabled != null && record.enabled);
+                    statement.setBoolean(4, record.blocked != null && record.blocked);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        });
+        inserted += records.size();
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return 0;
+        }
+        String value = Files.readString(checkpointFile, StandardCharsets.UTF_8).trim();
+        return value.isEmpty() ? 0 : Long.parseLong(value);
+    }
+
+    private void writeCheckpoint(long done) throws IOException {
+        Path temporary = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        Files.writeString(temporary, Long.toString(done), StandardCharsets.UTF_8);
+        Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void report(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+
+    static class ImportRecord {
+        String email;
+        String password;
+        String passwordHash;
+        Boolean enabled;
+        Boolean blocked;
+
+        static ImportRecord of(Map<String, ?> fields) {
+            ImportRecord record = new ImportRecord();
+            record.email = text(fields.get("email"));
+            record.password = text(fields.get("password"));
+            record.passwordHash = text(fields.get("passwordHash"));
+            String enabled = text(fields.get("enabled"));
+            record.enabled = enabled == null ? null : Boolean.parseBoolean(enabled) || enabled.equals("1");
+            String blocked = text(fields.get("blocked"));
+            record.blocked = blocked == null ? null : Boolean.parseBoolean(blocked) || blocked.equals("1");
+            return record;
+        }
+
+        private static String text(Object value) {
+            // same trimming as StringTrimConverter
+            return value == null || isBlank(value.toString()) ? null : value.toString().trim();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.ayoubanbara.tools;
+
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads {@link BulkUserImport.ImportRecord}s one line at a time from a CSV file with a header line,
+ * or from a JSON lines file (one object per line) when the file name ends with {@code .json} or {@code .jsonl}.
+ */
+abstract class RecordReader implements Closeable {
+
+    protected final BufferedReader reader;
+
+    private RecordReader(BufferedReader reader) {
+        this.reader = reader;
+    }
+
+    static RecordReader open(Path input) throws IOException {
+        BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+        String name = input.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".json") || name.endsWith(".jsonl") ? new JsonLines(reader) : new Csv(reader);
+    }
+
+    /**
+     * @return the next record, null at the end of the input
+     */
+    abstract BulkUserImport.ImportRecord next() throws IOException;
+
+    List<BulkUserImport.ImportRecord> next(int count) throws IOException {
+        List<BulkUserImport.ImportRecord> records = new ArrayList<>(count);
+        BulkUserImport.ImportRecord record;
+        while (records.size() < count && (record = next()) != null) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    void skip(long count) throws IOException {
+        for (long i = 0; i < count && next() != null; i++) {
+            // skipped records were committed by a previous run
+        }
+    }
+
+    /**
+     * @return the next non blank line, null at the end of the input
+     */
+    protected String nextLine() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isBlank()) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private static class JsonLines extends RecordReader {
+
+        JsonLines(BufferedReader reader) {
+            super(reader);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        BulkUserImport.ImportRecord next() throws IOException {
+            String line = nextLine();
+            return line == null ? null : BulkUserImport.ImportRecord.of(JsonSerialization.readValue(line, Map.class));
+        }
+    }
+
+    private static class Csv extends RecordReader {
+
+        private final List<String> header;
+
+        Csv(BufferedReader reader) throws IOException {
+            super(reader);
+            String line = nextLine();
+            this.header = line == null ? List.of() : split(line);
+        }
+
+        @Override
+        BulkUserImport.ImportRecord next() throws IOException {
+            String line = nextLine();
+            if (line == null) {
+                return null;
+            }
+            List<String> values = split(line);
+            Map<String, String> fields = new HashMap<>();
+            for (int i = 0; i < header.size() && i < values.size(); i++) {
+                fields.put(header.get(i).trim(), values.get(i));
+            }
+            return BulkUserImport.ImportRecord.of(fields);
+        }
+
+        /**
+         * Splits a line on commas, double quotes enclosing values that contain commas or escaped ("") quotes.
+         */
+        private static List<String> split(String line) {
+            List<String> values = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        value.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else {
+                    value.append(c);
+                }
+            }
+            values.add(value.toString());
+            return values;
+        }
+    }
+}
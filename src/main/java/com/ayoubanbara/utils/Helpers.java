@@ -1,5 +1,12 @@
 package com.ayoubanbara.utils;
 
+import org.keycloak.common.util.MultivaluedHashMap;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 public class Helpers {
     /**
      * <p>Checks if a CharSequence is empty (""), null or whitespace only.</p>
@@ -75,4 +82,56 @@ public class Helpers {
         return true;
     }
 
+    /**
+     * <p>Reads an integer component setting, falling back to {@code defaultValue} when it is blank.</p>
+     *
+     * @param config  the component configuration
+     * @param key  the setting name
+     * @param defaultValue  the value used when the setting is missing or blank
+     * @return the configured value or {@code defaultValue}
+     */
+    public static int getInt(final MultivaluedHashMap<String, String> config, final String key, final int defaultValue) {
+        final String value = config.getFirst(key);
+        return isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * <p>Reads a boolean component setting, falling back to {@code defaultValue} when it is blank.</p>
+     *
+     * @param config  the component configuration
+     * @param key  the setting name
+     * @param defaultValue  the value used when the setting is missing or blank
+     * @return the configured value or {@code defaultValue}
+     */
+    public static boolean getBoolean(final MultivaluedHashMap<String, String> config, final String key, final boolean defaultValue) {
+        final String value = config.getFirst(key);
+        return isBlank(value) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * <p>Reads component settings from a {@code key=value} file, for the standalone tools.</p>
+     *
+     * <p>Unlike {@link java.util.Properties}, a colon in a key such as {@code db:host} is part of
+     * the key. Blank lines and lines starting with {@code #} are ignored.</p>
+     *
+     * @param file  the settings file, in UTF-8
+     * @return the settings, one value per key
+     * @throws IOException if the file cannot be read
+     */
+    public static MultivaluedHashMap<String, String> readSettings(final Path file) throws IOException {
+        final MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            final String setting = line.trim();
+            final int separator = setting.indexOf('=');
+            if (setting.isEmpty() || setting.startsWith("#")) {
+                continue;
+            }
+            if (separator <= 0) {
+                throw new IOException("Invalid setting, expected key=value: " + setting);
+            }
+            config.putSingle(setting.substring(0, separator).trim(), setting.substring(separator + 1).trim());
+        }
+        return config;
+    }
+
 }